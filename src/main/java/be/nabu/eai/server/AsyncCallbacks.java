@@ -0,0 +1,170 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.server;
+
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.eai.server.AsyncExecutions.AsyncExecution;
+
+/**
+ * Posts the result of an asynchronous execution to a callback url.
+ * Only urls that match the configured allowlist (scheme, host, port and path prefix) are accepted, without an allowlist callbacks are disabled.
+ * Callbacks are sent from a small dedicated pool so a slow receiver can not tie up the server pool, if that pool is full the callback is dropped.
+ */
+public class AsyncCallbacks {
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private List<URI> allowed = new ArrayList<URI>();
+	// the connect and read timeout (ms)
+	private int timeout;
+	private ThreadPoolExecutor executor;
+
+	public AsyncCallbacks(List<String> allowed, int threads, int queueSize, int timeout) {
+		for (String single : allowed) {
+			if (single != null && !single.trim().isEmpty()) {
+				this.allowed.add(URI.create(single.trim()).normalize());
+			}
+		}
+		this.timeout = timeout;
+		this.executor = new ThreadPoolExecutor(threads, threads, 0l, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+			private AtomicLong counter = new AtomicLong();
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable);
+				thread.setName("async-callback-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public boolean isAllowed(String url) {
+		URI uri;
+		try {
+			uri = URI.create(url).normalize();
+		}
+		catch (IllegalArgumentException e) {
+			return false;
+		}
+		if (uri.getScheme() == null || uri.getHost() == null || uri.getUserInfo() != null) {
+			return false;
+		}
+		for (URI single : allowed) {
+			if (uri.getScheme().equalsIgnoreCase(single.getScheme())
+					&& uri.getHost().equalsIgnoreCase(single.getHost())
+					&& getPort(uri) == getPort(single)
+					&& isAllowedPath(uri.getRawPath(), single.getRawPath())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// the allowed path must match complete segments: "/hooks" allows "/hooks" and "/hooks/a" but not "/hooksevil"
+	private static boolean isAllowedPath(String path, String allowed) {
+		if (allowed != null && allowed.endsWith("/")) {
+			allowed = allowed.substring(0, allowed.length() - 1);
+		}
+		if (allowed == null || allowed.isEmpty()) {
+			return true;
+		}
+		return path != null && (path.equals(allowed) || path.startsWith(allowed + "/"));
+	}
+
+	private static int getPort(URI uri) {
+		if (uri.getPort() >= 0) {
+			return uri.getPort();
+		}
+		return "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+	}
+
+	public void send(final String url, final AsyncExecution execution) {
+		if (!isAllowed(url)) {
+			logger.warn("Callback url is not allowed for asynchronous execution " + execution.getId() + ": " + url);
+			return;
+		}
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					post(url, execution);
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			logger.error("Too many pending callbacks, dropping the callback for asynchronous execution " + execution.getId() + " to: " + url);
+		}
+	}
+
+	private void post(String url, AsyncExecution execution) {
+		try {
+			HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+			connection.setConnectTimeout(timeout);
+			connection.setReadTimeout(timeout);
+			// don't let a redirect take us outside of the allowlist
+			connection.setInstanceFollowRedirects(false);
+			connection.setRequestMethod("POST");
+			connection.setDoOutput(true);
+			connection.setRequestProperty("Execution-Id", execution.getId());
+			connection.setRequestProperty("Execution-State", execution.getState().name());
+			if (execution.getContentType() != null) {
+				connection.setRequestProperty("Content-Type", execution.getContentType());
+			}
+			byte [] content = execution.getContent() == null ? new byte[0] : execution.getContent();
+			connection.setFixedLengthStreamingMode(content.length);
+			OutputStream output = connection.getOutputStream();
+			try {
+				output.write(content);
+			}
+			finally {
+				output.close();
+			}
+			int code = connection.getResponseCode();
+			if (code < 200 || code >= 300) {
+				logger.warn("Callback for asynchronous execution " + execution.getId() + " to " + url + " returned: " + code);
+			}
+			connection.disconnect();
+		}
+		catch (Exception e) {
+			logger.error("Could not send callback for asynchronous execution " + execution.getId() + " to: " + url, e);
+		}
+	}
+
+	public boolean isEnabled() {
+		return !allowed.isEmpty();
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+}
@@ -0,0 +1,197 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.server;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import be.nabu.libs.services.api.ServiceException;
+
+/**
+ * Keeps track of services that were submitted asynchronously so their result can be picked up later.
+ * Finished executions are kept for the configured time to live, if the stored results exceed the maximum size or amount the oldest finished ones are dropped early.
+ * Running executions are never dropped, instead we refuse new ones once the maximum amount is running.
+ */
+public class AsyncExecutions {
+
+	public static final String REJECTED_CODE = "ASYNC-0";
+
+	public enum State {
+		RUNNING,
+		SUCCEEDED,
+		FAILED
+	}
+
+	// in insertion order so the oldest are evicted first
+	private Map<String, AsyncExecution> executions = new LinkedHashMap<String, AsyncExecution>();
+	// how long (ms) a finished execution is kept
+	private long timeToLive;
+	// the maximum size (in bytes) of all the stored results combined
+	private long maxSize;
+	private int maxExecutions;
+	private long size;
+	private int running;
+
+	public AsyncExecutions(long timeToLive, long maxSize, int maxExecutions) {
+		this.timeToLive = timeToLive;
+		this.maxSize = maxSize;
+		this.maxExecutions = maxExecutions;
+	}
+
+	/**
+	 * The owner identifies who submitted it, only the owner can fetch the result
+	 */
+	public synchronized AsyncExecution submit(String serviceId, String owner) throws ServiceException {
+		evict();
+		if (running >= maxExecutions) {
+			throw new ServiceException(REJECTED_CODE, "The maximum amount of " + maxExecutions + " running asynchronous executions has been reached, can not run: " + serviceId);
+		}
+		// make room by dropping the oldest finished results
+		Iterator<AsyncExecution> iterator = executions.values().iterator();
+		while (executions.size() >= maxExecutions && iterator.hasNext()) {
+			AsyncExecution execution = iterator.next();
+			if (execution.getState() != State.RUNNING) {
+				iterator.remove();
+				size -= execution.getSize();
+			}
+		}
+		AsyncExecution execution = new AsyncExecution(UUID.randomUUID().toString().replace("-", ""), serviceId, owner);
+		executions.put(execution.getId(), execution);
+		running++;
+		return execution;
+	}
+
+	/**
+	 * The content is the marshalled output (or the stack trace if it failed)
+	 */
+	public void complete(AsyncExecution execution, State state, byte[] content, String contentType) {
+		synchronized(this) {
+			execution.state = state;
+			execution.content = content;
+			execution.contentType = contentType;
+			execution.stopped = new Date();
+			running--;
+			// it may have been removed in the mean time
+			if (executions.containsKey(execution.getId())) {
+				size += execution.getSize();
+			}
+			evict();
+		}
+		execution.done.countDown();
+	}
+
+	public synchronized AsyncExecution get(String id) {
+		evict();
+		return executions.get(id);
+	}
+
+	/**
+	 * Waits until the execution is finished or the timeout expires, whichever comes first
+	 */
+	public AsyncExecution await(String id, long timeout) throws InterruptedException {
+		AsyncExecution execution = get(id);
+		if (execution != null && timeout > 0) {
+			execution.done.await(timeout, TimeUnit.MILLISECONDS);
+		}
+		return execution;
+	}
+
+	public synchronized AsyncExecution remove(String id) {
+		AsyncExecution execution = executions.remove(id);
+		if (execution != null) {
+			if (execution.getState() == State.RUNNING) {
+				running--;
+			}
+			else {
+				size -= execution.getSize();
+			}
+		}
+		return execution;
+	}
+
+	public synchronized int getCount() {
+		return executions.size();
+	}
+
+	public synchronized int getRunning() {
+		return running;
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	private void evict() {
+		long expired = System.currentTimeMillis() - timeToLive;
+		Iterator<AsyncExecution> iterator = executions.values().iterator();
+		while (iterator.hasNext()) {
+			AsyncExecution execution = iterator.next();
+			if (execution.getState() != State.RUNNING && (execution.getStopped().getTime() < expired || size > maxSize)) {
+				iterator.remove();
+				size -= execution.getSize();
+			}
+		}
+	}
+
+	public static class AsyncExecution {
+		private String id, serviceId, owner, contentType;
+		private Date started = new Date(), stopped;
+		private volatile State state = State.RUNNING;
+		private byte[] content;
+		private CountDownLatch done = new CountDownLatch(1);
+
+		AsyncExecution(String id, String serviceId, String owner) {
+			this.id = id;
+			this.serviceId = serviceId;
+			this.owner = owner;
+		}
+		public String getId() {
+			return id;
+		}
+		public String getServiceId() {
+			return serviceId;
+		}
+		public String getOwner() {
+			return owner;
+		}
+		public Date getStarted() {
+			return started;
+		}
+		public Date getStopped() {
+			return stopped;
+		}
+		public State getState() {
+			return state;
+		}
+		public byte[] getContent() {
+			return content;
+		}
+		public String getContentType() {
+			return contentType;
+		}
+		public long getSize() {
+			return content == null ? 0 : content.length;
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.server;
+
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+@XmlRootElement
+public class BatchRequest {
+	private List<BatchItem> items;
+	// whether the items can run concurrently and if so, how many at most
+	private Boolean parallel;
+	private Integer parallelism;
+
+	public List<BatchItem> getItems() {
+		return items;
+	}
+	public void setItems(List<BatchItem> items) {
+		this.items = items;
+	}
+	public Boolean getParallel() {
+		return parallel;
+	}
+	public void setParallel(Boolean parallel) {
+		this.parallel = parallel;
+	}
+	public Integer getParallelism() {
+		return parallelism;
+	}
+	public void setParallelism(Integer parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	public static class BatchItem {
+		// the service to run and the equivalent of the Service-Context and Feature headers of a single invoke
+		private String service, context, features;
+		// the input in the same format (xml or json) as the batch itself
+		private String input;
+
+		public String getService() {
+			return service;
+		}
+		public void setService(String service) {
+			this.service = service;
+		}
+		public String getContext() {
+			return context;
+		}
+		public void setContext(String context) {
+			this.context = context;
+		}
+		public String getFeatures() {
+			return features;
+		}
+		public void setFeatures(String features) {
+			this.features = features;
+		}
+		public String getInput() {
+			return input;
+		}
+		public void setInput(String input) {
+			this.input = input;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.server;
+
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+@XmlRootElement
+public class BatchResponse {
+	// the results in the same order as the items of the request
+	private List<BatchResult> results;
+
+	public List<BatchResult> getResults() {
+		return results;
+	}
+	public void setResults(List<BatchResult> results) {
+		this.results = results;
+	}
+
+	public static class BatchResult {
+		private String service;
+		// the output in the same format as the batch, or the stack trace and code if it failed
+		private String output, error, code;
+		// how long it took (in ms)
+		private long duration;
+
+		public String getService() {
+			return service;
+		}
+		public void setService(String service) {
+			this.service = service;
+		}
+		public String getOutput() {
+			return output;
+		}
+		public void setOutput(String output) {
+			this.output = output;
+		}
+		public String getError() {
+			return error;
+		}
+		public void setError(String error) {
+			this.error = error;
+		}
+		public String getCode() {
+			return code;
+		}
+		public void setCode(String code) {
+			this.code = code;
+		}
+		public long getDuration() {
+			return duration;
+		}
+		public void setDuration(long duration) {
+			this.duration = duration;
+		}
+	}
+}
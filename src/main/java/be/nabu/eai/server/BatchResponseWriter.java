@@ -0,0 +1,127 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import be.nabu.eai.server.BatchResponse.BatchResult;
+
+/**
+ * Writes a batch response one result at a time so the results don't have to be kept in memory until the entire batch is done.
+ * The output is the same as marshalling a BatchResponse with the xml or json binding.
+ */
+public class BatchResponseWriter {
+
+	private Writer writer;
+	private boolean json, first = true;
+
+	public BatchResponseWriter(OutputStream output, boolean json) {
+		this.writer = new OutputStreamWriter(output, Charset.forName("UTF-8"));
+		this.json = json;
+	}
+
+	public void start() throws IOException {
+		writer.write(json ? "{\"results\":[" : "<?xml version=\"1.0\" encoding=\"UTF-8\"?><batchResponse>");
+	}
+
+	public void write(BatchResult result) throws IOException {
+		if (json) {
+			writer.write(first ? "{" : ",{");
+			boolean firstField = true;
+			firstField = writeField("service", result.getService(), firstField);
+			firstField = writeField("output", result.getOutput(), firstField);
+			firstField = writeField("error", result.getError(), firstField);
+			firstField = writeField("code", result.getCode(), firstField);
+			writer.write((firstField ? "" : ",") + "\"duration\":" + result.getDuration() + "}");
+		}
+		else {
+			writer.write("<results>");
+			writeField("service", result.getService(), false);
+			writeField("output", result.getOutput(), false);
+			writeField("error", result.getError(), false);
+			writeField("code", result.getCode(), false);
+			writer.write("<duration>" + result.getDuration() + "</duration></results>");
+		}
+		first = false;
+		// push each result to the client as soon as it is done
+		writer.flush();
+	}
+
+	public void end() throws IOException {
+		writer.write(json ? "]}" : "</batchResponse>");
+		writer.flush();
+	}
+
+	private boolean writeField(String name, String value, boolean firstField) throws IOException {
+		if (value == null) {
+			return firstField;
+		}
+		if (json) {
+			writer.write((firstField ? "" : ",") + "\"" + name + "\":\"" + escapeJSON(value) + "\"");
+		}
+		else {
+			writer.write("<" + name + ">" + escapeXML(value) + "</" + name + ">");
+		}
+		return false;
+	}
+
+	private static String escapeJSON(String value) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < value.length(); i++) {
+			char character = value.charAt(i);
+			switch(character) {
+				case '"': builder.append("\\\""); break;
+				case '\\': builder.append("\\\\"); break;
+				case '\n': builder.append("\\n"); break;
+				case '\r': builder.append("\\r"); break;
+				case '\t': builder.append("\\t"); break;
+				default:
+					if (character < 0x20) {
+						builder.append(String.format("\\u%04x", (int) character));
+					}
+					else {
+						builder.append(character);
+					}
+			}
+		}
+		return builder.toString();
+	}
+
+	private static String escapeXML(String value) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < value.length(); i++) {
+			char character = value.charAt(i);
+			switch(character) {
+				case '&': builder.append("&amp;"); break;
+				case '<': builder.append("&lt;"); break;
+				case '>': builder.append("&gt;"); break;
+				case '"': builder.append("&quot;"); break;
+				default:
+					// characters that are not allowed in xml 1.0 are dropped
+					if (character >= 0x20 || character == '\n' || character == '\r' || character == '\t') {
+						builder.append(character);
+					}
+			}
+		}
+		return builder.toString();
+	}
+}
@@ -32,31 +32,46 @@ public class BatchResultFuture implements Future<List<ServiceResult>> {
 	private List<ServiceResult> results = new ArrayList<ServiceResult>();
 	private int amountOfExpectedResults;
 	private boolean cancelled;
+	private String runId;
+	// when this future expires, after that no more results are accepted and it can be evicted
+	private long expires;
 	
 	private CountDownLatch latch = null;
 
 	public BatchResultFuture(int amountOfExpectedResults) {
+		this(null, amountOfExpectedResults, Long.MAX_VALUE);
+	}
+	
+	public BatchResultFuture(String runId, int amountOfExpectedResults, long expires) {
+		this.runId = runId;
+		this.amountOfExpectedResults = amountOfExpectedResults;
+		this.expires = expires;
 		latch = new CountDownLatch(amountOfExpectedResults);
 	}
 	
 	public void addResult(ServiceResult result) {
 		synchronized(results) {
-			results.add(result);
-			latch.countDown();
+			// late results (after cancellation or once we have everything we expected) are ignored
+			if (!cancelled && results.size() < amountOfExpectedResults) {
+				results.add(result);
+				latch.countDown();
+			}
 		}
 	}
 	
 	@Override
 	public boolean cancel(boolean mayInterruptIfRunning) {
 		boolean cancelledSomething = false;
-		// lower our expectations...
-		while (latch.getCount() > 0) {
-			latch.countDown();
-			cancelledSomething = true;
-		}
-		// can't cancel if it was already done for example
-		if (cancelledSomething) {
-			cancelled = true;
+		synchronized(results) {
+			// lower our expectations...
+			while (latch.getCount() > 0) {
+				latch.countDown();
+				cancelledSomething = true;
+			}
+			// can't cancel if it was already done for example
+			if (cancelledSomething) {
+				cancelled = true;
+			}
 		}
 		return cancelledSomething;
 	}
@@ -68,7 +83,11 @@ public class BatchResultFuture implements Future<List<ServiceResult>> {
 
 	@Override
 	public boolean isDone() {
-		return results.size() >= amountOfExpectedResults;
+		return cancelled || latch.getCount() == 0;
+	}
+	
+	public boolean isExpired() {
+		return System.currentTimeMillis() > expires;
 	}
 
 	@Override
@@ -84,11 +103,36 @@ public class BatchResultFuture implements Future<List<ServiceResult>> {
 	@Override
 	public List<ServiceResult> get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
 		if (latch.await(timeout, unit)) {
-			return results;
+			return getResults();
 		}
 		else {
             throw new TimeoutException();
     	}
 	}
+	
+	/**
+	 * Waits at most the given time for all the results to arrive, if some members are too slow, we return whatever we have at that point
+	 */
+	public List<ServiceResult> collect(long timeout, TimeUnit unit) throws InterruptedException {
+		latch.await(timeout, unit);
+		return getResults();
+	}
+	
+	/**
+	 * A snapshot of the results that have arrived so far
+	 */
+	public List<ServiceResult> getResults() {
+		synchronized(results) {
+			return new ArrayList<ServiceResult>(results);
+		}
+	}
+
+	public String getRunId() {
+		return runId;
+	}
+
+	public int getAmountOfExpectedResults() {
+		return amountOfExpectedResults;
+	}
 
 }
@@ -0,0 +1,252 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.DefinedType;
+import be.nabu.libs.types.binding.api.Window;
+import be.nabu.libs.types.binding.json.JSONBinding;
+import be.nabu.libs.types.binding.xml.XMLBinding;
+
+/**
+ * Caches xml and json bindings per type, charset and options so they are not set up again for every call.
+ * A binding is not guaranteed to be thread safe so it is borrowed from a small pool for the duration of one (un)marshal and returned afterwards, this works for any thread (including short lived ones).
+ * Types are referenced weakly, the idle bindings (which reference their type) only softly so an unused anonymous type can still be collected.
+ * When an artifact is reloaded or unloaded, its types are replaced so we drop the bindings for it, bindings for anonymous types (e.g. a service interface) are dropped on every reload.
+ */
+public class BindingCache {
+
+	// if we have more than this many keys (e.g. because of anonymous types that are never reloaded), we start over
+	private static final int MAX_SIZE = 1000;
+	// the maximum amount of idle bindings we keep per key
+	private static final int MAX_IDLE = 16;
+
+	private static ConcurrentHashMap<Key, Pool> pools = new ConcurrentHashMap<Key, Pool>();
+	private static ReferenceQueue<ComplexType> collected = new ReferenceQueue<ComplexType>();
+
+	public static void marshalXML(OutputStream output, ComplexContent content, Charset charset) throws IOException {
+		Pool pool = getXMLPool(content.getType(), charset, false);
+		XMLBinding binding = (XMLBinding) pool.borrow();
+		try {
+			binding.marshal(output, content);
+		}
+		finally {
+			pool.release(binding);
+		}
+	}
+
+	public static ComplexContent unmarshalXML(InputStream input, ComplexType type, Charset charset) throws IOException, ParseException {
+		return unmarshalXML(input, type, charset, false);
+	}
+
+	public static ComplexContent unmarshalXML(InputStream input, ComplexType type, Charset charset, boolean allowSuperTypes) throws IOException, ParseException {
+		Pool pool = getXMLPool(type, charset, allowSuperTypes);
+		XMLBinding binding = (XMLBinding) pool.borrow();
+		try {
+			return binding.unmarshal(input, new Window[0]);
+		}
+		finally {
+			pool.release(binding);
+		}
+	}
+
+	public static void marshalJSON(OutputStream output, ComplexContent content) throws IOException {
+		Pool pool = getJSONPool(content.getType());
+		JSONBinding binding = (JSONBinding) pool.borrow();
+		try {
+			binding.marshal(output, content);
+		}
+		finally {
+			pool.release(binding);
+		}
+	}
+
+	public static ComplexContent unmarshalJSON(InputStream input, ComplexType type) throws IOException, ParseException {
+		Pool pool = getJSONPool(type);
+		JSONBinding binding = (JSONBinding) pool.borrow();
+		try {
+			return binding.unmarshal(input, new Window[0]);
+		}
+		finally {
+			pool.release(binding);
+		}
+	}
+
+	private static Pool getXMLPool(final ComplexType type, final Charset charset, final boolean allowSuperTypes) {
+		return getPool(new Key(type, "xml", charset, allowSuperTypes, null), new Factory() {
+			@Override
+			public Object create(ComplexType type) {
+				XMLBinding binding = new XMLBinding(type, charset);
+				binding.setAllowSuperTypes(allowSuperTypes);
+				return binding;
+			}
+		});
+	}
+
+	private static Pool getJSONPool(ComplexType type) {
+		return getPool(new Key(type, "json", null, false, null), new Factory() {
+			@Override
+			public Object create(ComplexType type) {
+				return new JSONBinding(type);
+			}
+		});
+	}
+
+	private static Pool getPool(Key key, Factory factory) {
+		purge();
+		Pool pool = pools.get(key);
+		if (pool == null) {
+			if (pools.size() >= MAX_SIZE) {
+				pools.clear();
+			}
+			ComplexType type = key.get();
+			// the pool does not hold on to the type, it is passed in on every borrow
+			pool = new Pool(factory, new Key(type, key.format, key.charset == null ? null : Charset.forName(key.charset), key.allowSuperTypes, collected));
+			Pool existing = pools.putIfAbsent(pool.key, pool);
+			if (existing != null) {
+				pool = existing;
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * Drops the pools for types that have been garbage collected
+	 */
+	private static void purge() {
+		Object reference;
+		while ((reference = collected.poll()) != null) {
+			pools.remove(reference);
+		}
+	}
+
+	/**
+	 * Drops the bindings for the types of the given artifact (including its inner types) and for all anonymous types
+	 */
+	public static void invalidate(String id) {
+		Iterator<Key> iterator = pools.keySet().iterator();
+		while (iterator.hasNext()) {
+			Key key = iterator.next();
+			if (key.id == null || key.id.equals(id) || key.id.startsWith(id + ":") || key.id.startsWith(id + ".")) {
+				iterator.remove();
+			}
+		}
+	}
+
+	public static void clear() {
+		pools.clear();
+	}
+
+	public static int size() {
+		return pools.size();
+	}
+
+	private interface Factory {
+		public Object create(ComplexType type);
+	}
+
+	private static class Pool {
+		private Factory factory;
+		private Key key;
+		private Queue<SoftReference<Object>> idle = new ConcurrentLinkedQueue<SoftReference<Object>>();
+		private AtomicInteger size = new AtomicInteger();
+
+		Pool(Factory factory, Key key) {
+			this.factory = factory;
+			this.key = key;
+		}
+
+		Object borrow() {
+			SoftReference<Object> reference;
+			while ((reference = idle.poll()) != null) {
+				size.decrementAndGet();
+				Object binding = reference.get();
+				if (binding != null) {
+					return binding;
+				}
+			}
+			ComplexType type = key.get();
+			if (type == null) {
+				throw new IllegalStateException("The type of this binding has been collected");
+			}
+			return factory.create(type);
+		}
+
+		void release(Object binding) {
+			if (size.incrementAndGet() <= MAX_IDLE) {
+				idle.offer(new SoftReference<Object>(binding));
+			}
+			else {
+				size.decrementAndGet();
+			}
+		}
+	}
+
+	private static class Key extends WeakReference<ComplexType> {
+		private String id, format, charset;
+		private boolean allowSuperTypes;
+		private int hash;
+
+		Key(ComplexType type, String format, Charset charset, boolean allowSuperTypes, ReferenceQueue<ComplexType> queue) {
+			super(type, queue);
+			this.id = type instanceof DefinedType ? ((DefinedType) type).getId() : null;
+			this.format = format;
+			this.charset = charset == null ? null : charset.name();
+			this.allowSuperTypes = allowSuperTypes;
+			int hash = System.identityHashCode(type);
+			hash = 31 * hash + format.hashCode();
+			hash = 31 * hash + (this.charset == null ? 0 : this.charset.hashCode());
+			this.hash = 31 * hash + (allowSuperTypes ? 1 : 0);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if (object == this) {
+				return true;
+			}
+			if (!(object instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) object;
+			ComplexType type = get();
+			// types are compared by identity, a reloaded type is a new instance, a collected type only matches its own key
+			return type != null && type == other.get() && format.equals(other.format) && allowSuperTypes == other.allowSuperTypes
+				&& (charset == null ? other.charset == null : charset.equals(other.charset));
+		}
+	}
+}
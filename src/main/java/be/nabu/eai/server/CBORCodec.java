@@ -0,0 +1,492 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.libs.converter.ConverterFactory;
+import be.nabu.libs.types.ComplexContentWrapperFactory;
+import be.nabu.libs.types.DefinedTypeResolverFactory;
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.DefinedType;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.api.Type;
+
+/**
+ * A compact binary encoding (RFC 8949) of complex content.
+ * Complex content is written as a map of element name to value, lists are written as arrays, dates as epoch-based timestamps (tag 1).
+ * Simple types that have no native representation are written as their string form, the type definition converts them back when unmarshalling.
+ * If a value is an extension of the type its element defines, the id of the actual type is sent along in a "@type" entry (much like xsi:type in xml) so the fields of the extension are not lost.
+ * When reading, that type is only used if it can be resolved and actually extends the defined type, otherwise we fall back to the defined type.
+ */
+public class CBORCodec {
+
+	public static final String CONTENT_TYPE = "application/cbor";
+
+	// the content may come from an untrusted source so we limit the size of a single string, the amount of elements in a single array or map and the nesting depth
+	private static volatile long maxLength = 1024l * 1024 * 16;
+	private static volatile long maxElements = 1000000;
+	private static volatile int maxDepth = 64;
+	private static final int CHUNK_SIZE = 8192;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int MAJOR_UNSIGNED = 0;
+	private static final int MAJOR_NEGATIVE = 1;
+	private static final int MAJOR_BYTES = 2;
+	private static final int MAJOR_TEXT = 3;
+	private static final int MAJOR_ARRAY = 4;
+	private static final int MAJOR_MAP = 5;
+	private static final int MAJOR_TAG = 6;
+	private static final int MAJOR_SIMPLE = 7;
+
+	private static final int TAG_EPOCH = 1;
+	// the key that holds the id of the actual type if it is an extension of the defined type
+	private static final String TYPE_KEY = "@type";
+	private static final int INDEFINITE = 31;
+	private static final int BREAK = 0xff;
+
+	public static void marshal(OutputStream output, ComplexContent content) throws IOException {
+		writeContent(output, content, null);
+		output.flush();
+	}
+
+	public static ComplexContent unmarshal(InputStream input, ComplexType type) throws IOException, ParseException {
+		// we read byte per byte
+		if (!(input instanceof BufferedInputStream) && !(input instanceof ByteArrayInputStream)) {
+			input = new BufferedInputStream(input);
+		}
+		Object value = read(input, 0);
+		if (value == null) {
+			return null;
+		}
+		if (!(value instanceof Map)) {
+			throw new ParseException("Expecting a map at the root, received: " + value.getClass().getName(), 0);
+		}
+		return toContent(value, type);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void writeContent(OutputStream output, ComplexContent content, ComplexType defined) throws IOException {
+		output.write((MAJOR_MAP << 5) | INDEFINITE);
+		if (defined != null && content.getType() != defined && content.getType() instanceof DefinedType
+				&& !(defined instanceof DefinedType && ((DefinedType) defined).getId().equals(((DefinedType) content.getType()).getId()))) {
+			writeText(output, TYPE_KEY);
+			writeText(output, ((DefinedType) content.getType()).getId());
+		}
+		for (Element<?> child : TypeUtils.getAllChildren(content.getType())) {
+			Object value = content.get(child.getName());
+			if (value == null) {
+				continue;
+			}
+			writeText(output, child.getName());
+			if (value instanceof Collection) {
+				Collection<Object> collection = (Collection<Object>) value;
+				writeHead(output, MAJOR_ARRAY, collection.size());
+				for (Object single : collection) {
+					writeValue(output, child, single);
+				}
+			}
+			else if (value instanceof Object[]) {
+				Object[] array = (Object[]) value;
+				writeHead(output, MAJOR_ARRAY, array.length);
+				for (Object single : array) {
+					writeValue(output, child, single);
+				}
+			}
+			else {
+				writeValue(output, child, value);
+			}
+		}
+		output.write(BREAK);
+	}
+
+	private static void writeValue(OutputStream output, Element<?> element, Object value) throws IOException {
+		if (value == null) {
+			output.write((MAJOR_SIMPLE << 5) | 22);
+		}
+		else if (value instanceof ComplexContent) {
+			writeContent(output, (ComplexContent) value, element.getType() instanceof ComplexType ? (ComplexType) element.getType() : null);
+		}
+		else if (element.getType() instanceof ComplexType) {
+			ComplexContent wrapped = ComplexContentWrapperFactory.getInstance().getWrapper().wrap(value);
+			if (wrapped == null) {
+				throw new IOException("Can not wrap value of type '" + value.getClass().getName() + "' for element: " + element.getName());
+			}
+			writeContent(output, wrapped, (ComplexType) element.getType());
+		}
+		else if (value instanceof String) {
+			writeText(output, (String) value);
+		}
+		else if (value instanceof Boolean) {
+			output.write((MAJOR_SIMPLE << 5) | ((Boolean) value ? 21 : 20));
+		}
+		else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			long number = ((Number) value).longValue();
+			if (number >= 0) {
+				writeHead(output, MAJOR_UNSIGNED, number);
+			}
+			else {
+				writeHead(output, MAJOR_NEGATIVE, -1 - number);
+			}
+		}
+		else if (value instanceof Float) {
+			output.write((MAJOR_SIMPLE << 5) | 26);
+			writeLong(output, Float.floatToIntBits((Float) value) & 0xffffffffl, 4);
+		}
+		else if (value instanceof Double) {
+			writeDouble(output, (Double) value);
+		}
+		// arbitrary precision numbers are sent as text to remain lossless
+		else if (value instanceof BigDecimal || value instanceof BigInteger) {
+			writeText(output, value.toString());
+		}
+		else if (value instanceof Date) {
+			writeHead(output, MAJOR_TAG, TAG_EPOCH);
+			writeDouble(output, ((Date) value).getTime() / 1000.0);
+		}
+		else if (value instanceof byte[]) {
+			writeHead(output, MAJOR_BYTES, ((byte[]) value).length);
+			output.write((byte[]) value);
+		}
+		else if (value instanceof InputStream) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte [] buffer = new byte[8192];
+			int read;
+			InputStream input = (InputStream) value;
+			try {
+				while ((read = input.read(buffer)) > 0) {
+					bytes.write(buffer, 0, read);
+				}
+			}
+			finally {
+				input.close();
+			}
+			writeHead(output, MAJOR_BYTES, bytes.size());
+			bytes.writeTo(output);
+		}
+		else {
+			String converted = ConverterFactory.getInstance().getConverter().convert(value, String.class);
+			writeText(output, converted == null ? value.toString() : converted);
+		}
+	}
+
+	private static void writeText(OutputStream output, String text) throws IOException {
+		byte[] bytes = text.getBytes(UTF8);
+		writeHead(output, MAJOR_TEXT, bytes.length);
+		output.write(bytes);
+	}
+
+	private static void writeDouble(OutputStream output, double value) throws IOException {
+		output.write((MAJOR_SIMPLE << 5) | 27);
+		writeLong(output, Double.doubleToLongBits(value), 8);
+	}
+
+	private static void writeHead(OutputStream output, int major, long value) throws IOException {
+		if (value < 24) {
+			output.write((major << 5) | (int) value);
+		}
+		else if (value <= 0xffl) {
+			output.write((major << 5) | 24);
+			writeLong(output, value, 1);
+		}
+		else if (value <= 0xffffl) {
+			output.write((major << 5) | 25);
+			writeLong(output, value, 2);
+		}
+		else if (value <= 0xffffffffl) {
+			output.write((major << 5) | 26);
+			writeLong(output, value, 4);
+		}
+		else {
+			output.write((major << 5) | 27);
+			writeLong(output, value, 8);
+		}
+	}
+
+	private static void writeLong(OutputStream output, long value, int bytes) throws IOException {
+		for (int i = bytes - 1; i >= 0; i--) {
+			output.write((int) (value >>> (i * 8)) & 0xff);
+		}
+	}
+
+	/**
+	 * Reads a single generic value: maps, lists, strings, numbers, booleans, byte arrays or dates
+	 */
+	private static Object read(InputStream input, int depth) throws IOException, ParseException {
+		int initial = readByte(input);
+		return read(input, initial, depth);
+	}
+
+	private static Object read(InputStream input, int initial, int depth) throws IOException, ParseException {
+		if (depth > maxDepth) {
+			throw new ParseException("The content is nested deeper than the maximum of " + maxDepth, 0);
+		}
+		int major = initial >>> 5;
+		int additional = initial & 0x1f;
+		switch(major) {
+			case MAJOR_UNSIGNED:
+				return readArgument(input, additional);
+			case MAJOR_NEGATIVE:
+				return -1 - readArgument(input, additional);
+			case MAJOR_BYTES:
+				if (additional == INDEFINITE) {
+					return readChunks(input, MAJOR_BYTES);
+				}
+				return readBytes(input, readArgument(input, additional));
+			case MAJOR_TEXT:
+				if (additional == INDEFINITE) {
+					return new String(readChunks(input, MAJOR_TEXT), UTF8);
+				}
+				return new String(readBytes(input, readArgument(input, additional)), UTF8);
+			case MAJOR_ARRAY:
+				List<Object> list = new ArrayList<Object>();
+				if (additional == INDEFINITE) {
+					for (int next = readByte(input); next != BREAK; next = readByte(input)) {
+						checkElements(list.size() + 1);
+						list.add(read(input, next, depth + 1));
+					}
+				}
+				else {
+					long size = readArgument(input, additional);
+					checkElements(size);
+					for (long i = 0; i < size; i++) {
+						list.add(read(input, depth + 1));
+					}
+				}
+				return list;
+			case MAJOR_MAP:
+				Map<String, Object> map = new LinkedHashMap<String, Object>();
+				if (additional == INDEFINITE) {
+					long count = 0;
+					for (int next = readByte(input); next != BREAK; next = readByte(input)) {
+						checkElements(++count);
+						map.put(String.valueOf(read(input, next, depth + 1)), read(input, depth + 1));
+					}
+				}
+				else {
+					long size = readArgument(input, additional);
+					checkElements(size);
+					for (long i = 0; i < size; i++) {
+						map.put(String.valueOf(read(input, depth + 1)), read(input, depth + 1));
+					}
+				}
+				return map;
+			case MAJOR_TAG:
+				long tag = readArgument(input, additional);
+				Object tagged = read(input, depth + 1);
+				if (tag == TAG_EPOCH && tagged instanceof Number) {
+					return new Date(Math.round(((Number) tagged).doubleValue() * 1000));
+				}
+				// we don't know the tag, just use the content
+				return tagged;
+			default:
+				switch(additional) {
+					case 20: return false;
+					case 21: return true;
+					case 22:
+					case 23: return null;
+					case 25: return halfToFloat((int) readLong(input, 2));
+					case 26: return Float.intBitsToFloat((int) readLong(input, 4));
+					case 27: return Double.longBitsToDouble(readLong(input, 8));
+					default:
+						throw new ParseException("Unsupported simple value: " + additional, 0);
+				}
+		}
+	}
+
+	/**
+	 * An indefinite length string consists of definite length chunks of the same major type
+	 */
+	private static byte[] readChunks(InputStream input, int major) throws IOException, ParseException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (int next = readByte(input); next != BREAK; next = readByte(input)) {
+			if ((next >>> 5) != major || (next & 0x1f) == INDEFINITE) {
+				throw new ParseException("Invalid chunk in indefinite length string: " + next, 0);
+			}
+			byte[] chunk = readBytes(input, readArgument(input, next & 0x1f));
+			if (bytes.size() + (long) chunk.length > maxLength) {
+				throw new ParseException("The string exceeds the maximum length of " + maxLength, 0);
+			}
+			bytes.write(chunk);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void checkElements(long size) throws ParseException {
+		if (size < 0 || size > maxElements) {
+			throw new ParseException("The amount of elements exceeds the maximum of " + maxElements, 0);
+		}
+	}
+
+	private static long readArgument(InputStream input, int additional) throws IOException, ParseException {
+		if (additional < 24) {
+			return additional;
+		}
+		switch(additional) {
+			case 24: return readLong(input, 1);
+			case 25: return readLong(input, 2);
+			case 26: return readLong(input, 4);
+			case 27: return readLong(input, 8);
+			default:
+				throw new ParseException("Invalid argument: " + additional, 0);
+		}
+	}
+
+	private static long readLong(InputStream input, int bytes) throws IOException {
+		long value = 0;
+		for (int i = 0; i < bytes; i++) {
+			value = (value << 8) | readByte(input);
+		}
+		return value;
+	}
+
+	private static int readByte(InputStream input) throws IOException {
+		int read = input.read();
+		if (read < 0) {
+			throw new EOFException("Unexpected end of content");
+		}
+		return read;
+	}
+
+	private static byte[] readBytes(InputStream input, long length) throws IOException, ParseException {
+		// an 8 byte length can be negative
+		if (length < 0 || length > maxLength) {
+			throw new ParseException("The string exceeds the maximum length of " + maxLength, 0);
+		}
+		// we don't trust the length enough to allocate it up front, the buffer only grows with the content that actually arrives
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.min(length, CHUNK_SIZE));
+		byte[] buffer = new byte[(int) Math.min(length, CHUNK_SIZE)];
+		long remaining = length;
+		while (remaining > 0) {
+			int read = input.read(buffer, 0, (int) Math.min(remaining, buffer.length));
+			if (read < 0) {
+				throw new EOFException("Unexpected end of content");
+			}
+			bytes.write(buffer, 0, read);
+			remaining -= read;
+		}
+		return bytes.toByteArray();
+	}
+
+	private static float halfToFloat(int half) {
+		int exponent = (half >> 10) & 0x1f;
+		int mantissa = half & 0x3ff;
+		float value;
+		if (exponent == 0) {
+			value = (float) (mantissa * Math.pow(2, -24));
+		}
+		else if (exponent == 31) {
+			value = mantissa == 0 ? Float.POSITIVE_INFINITY : Float.NaN;
+		}
+		else {
+			value = (float) ((mantissa + 1024) * Math.pow(2, exponent - 25));
+		}
+		return (half & 0x8000) != 0 ? -value : value;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static ComplexContent toContent(Object value, ComplexType type) {
+		type = getActualType((Map<String, Object>) value, type);
+		ComplexContent content = type.newInstance();
+		for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+			Element<?> element = type.get(entry.getKey());
+			// unknown fields are ignored, much like the other bindings
+			if (element == null || entry.getValue() == null) {
+				continue;
+			}
+			Object child = entry.getValue();
+			if (element.getType() instanceof ComplexType) {
+				ComplexType childType = (ComplexType) element.getType();
+				if (child instanceof List) {
+					List<Object> children = new ArrayList<Object>();
+					for (Object single : (List<Object>) child) {
+						children.add(single instanceof Map ? toContent(single, childType) : null);
+					}
+					child = children;
+				}
+				else if (child instanceof Map) {
+					child = toContent(child, childType);
+				}
+				else {
+					continue;
+				}
+			}
+			content.set(entry.getKey(), child);
+		}
+		return content;
+	}
+
+	/**
+	 * The type named in the content, if it is an extension of the defined type
+	 */
+	private static ComplexType getActualType(Map<String, Object> value, ComplexType defined) {
+		Object id = value.get(TYPE_KEY);
+		if (id instanceof String && !(defined instanceof DefinedType && id.equals(((DefinedType) defined).getId()))) {
+			DefinedType resolved = DefinedTypeResolverFactory.getInstance().getResolver().resolve((String) id);
+			if (resolved instanceof ComplexType) {
+				int depth = 0;
+				for (Type superType = resolved.getSuperType(); superType != null && depth < maxDepth; superType = superType.getSuperType(), depth++) {
+					if (superType == defined || (superType instanceof DefinedType && defined instanceof DefinedType && ((DefinedType) superType).getId().equals(((DefinedType) defined).getId()))) {
+						return (ComplexType) resolved;
+					}
+				}
+			}
+		}
+		return defined;
+	}
+
+	public static long getMaxLength() {
+		return maxLength;
+	}
+	public static void setMaxLength(long maxLength) {
+		CBORCodec.maxLength = maxLength;
+	}
+
+	public static long getMaxElements() {
+		return maxElements;
+	}
+	public static void setMaxElements(long maxElements) {
+		CBORCodec.maxElements = maxElements;
+	}
+
+	public static int getMaxDepth() {
+		return maxDepth;
+	}
+	public static void setMaxDepth(int maxDepth) {
+		CBORCodec.maxDepth = maxDepth;
+	}
+}
@@ -69,8 +69,6 @@ import be.nabu.libs.nio.api.events.ConnectionEvent;
 import be.nabu.libs.nio.api.events.ConnectionEvent.ConnectionState;
 import be.nabu.libs.types.api.ComplexContent;
 import be.nabu.libs.types.api.ComplexType;
-import be.nabu.libs.types.binding.api.Window;
-import be.nabu.libs.types.binding.xml.XMLBinding;
 import be.nabu.utils.mime.api.Header;
 
 public class CollaborationListener {
@@ -303,9 +301,8 @@ public class CollaborationListener {
 	
 	public static byte [] marshalComplex(ComplexContent content) {
 		try {
-			XMLBinding binding = new XMLBinding(content.getType(), Charset.forName("UTF-8"));
 			ByteArrayOutputStream output = new ByteArrayOutputStream();
-			binding.marshal(output, content);
+			BindingCache.marshalXML(output, content, Charset.forName("UTF-8"));
 			return output.toByteArray();
 		}
 		catch (Exception e) {
@@ -315,8 +312,7 @@ public class CollaborationListener {
 	
 	public static ComplexContent unmarshalComplex(byte [] bytes, ComplexType type) {
 		try {
-			XMLBinding binding = new XMLBinding(type, Charset.forName("UTF-8"));
-			return binding.unmarshal(new ByteArrayInputStream(bytes), new Window[0]);
+			return BindingCache.unmarshalXML(new ByteArrayInputStream(bytes), type, Charset.forName("UTF-8"));
 		}
 		catch (Exception e) {
 			throw new RuntimeException(e);
@@ -0,0 +1,254 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * A dependency graph between artifact ids that can be sorted so dependencies always come first.
+ * Each node has a priority (e.g. its start phase), among the nodes whose dependencies are met, the lowest priority goes first and ties retain the original order.
+ * Circular dependencies can not be sorted correctly, they are reported by getCycles() and the sort breaks them in priority order.
+ */
+public class DependencyGraph {
+
+	private Map<String, Integer> indexes = new HashMap<String, Integer>();
+	private List<String> ids = new ArrayList<String>();
+	private List<Integer> priorities = new ArrayList<Integer>();
+	// for each node, the nodes it depends on
+	private List<Set<Integer>> dependencies = new ArrayList<Set<Integer>>();
+
+	public void add(String id, int priority) {
+		if (!indexes.containsKey(id)) {
+			indexes.put(id, ids.size());
+			ids.add(id);
+			priorities.add(priority);
+			dependencies.add(new LinkedHashSet<Integer>());
+		}
+	}
+
+	/**
+	 * Both nodes must have been added, dependencies on unknown nodes are ignored
+	 */
+	public void addDependency(String id, String dependency) {
+		Integer from = indexes.get(id);
+		Integer to = indexes.get(dependency);
+		if (from != null && to != null && !from.equals(to)) {
+			dependencies.get(from).add(to);
+		}
+	}
+
+	/**
+	 * The ids of the nodes that the given node depends on directly
+	 */
+	public List<String> getDependencies(String id) {
+		List<String> result = new ArrayList<String>();
+		Integer index = indexes.get(id);
+		if (index != null) {
+			for (Integer dependency : dependencies.get(index)) {
+				result.add(ids.get(dependency));
+			}
+		}
+		return result;
+	}
+
+	public int size() {
+		return ids.size();
+	}
+
+	/**
+	 * Kahn's algorithm with a priority queue, this is O((n + e) log n) for n nodes and e dependencies
+	 */
+	public List<String> sort() {
+		List<String> sorted = new ArrayList<String>(ids.size());
+		for (List<String> wave : traverse(false)) {
+			sorted.addAll(wave);
+		}
+		return sorted;
+	}
+	
+	/**
+	 * Groups the nodes in waves: each wave only depends on earlier waves and all the nodes in a wave have the same priority
+	 * The nodes within a wave can be processed concurrently
+	 */
+	public List<List<String>> getWaves() {
+		return traverse(true);
+	}
+
+	private List<List<String>> traverse(boolean waves) {
+		int size = ids.size();
+		int[] remaining = new int[size];
+		List<List<Integer>> dependents = new ArrayList<List<Integer>>(size);
+		for (int i = 0; i < size; i++) {
+			dependents.add(new ArrayList<Integer>());
+		}
+		for (int i = 0; i < size; i++) {
+			remaining[i] = dependencies.get(i).size();
+			for (Integer dependency : dependencies.get(i)) {
+				dependents.get(dependency).add(i);
+			}
+		}
+		Comparator<Integer> comparator = getComparator();
+		PriorityQueue<Integer> ready = new PriorityQueue<Integer>(Math.max(1, size), comparator);
+		for (int i = 0; i < size; i++) {
+			if (remaining[i] == 0) {
+				ready.add(i);
+			}
+		}
+		boolean[] done = new boolean[size];
+		int amountDone = 0;
+		List<List<String>> result = new ArrayList<List<String>>();
+		while (amountDone < size) {
+			List<Integer> current = new ArrayList<Integer>();
+			Integer next = ready.poll();
+			// only cycles are left, we take the best candidate and pretend its dependencies are met
+			if (next == null) {
+				for (int i = 0; i < size; i++) {
+					if (!done[i] && (next == null || comparator.compare(i, next) < 0)) {
+						next = i;
+					}
+				}
+			}
+			if (done[next]) {
+				continue;
+			}
+			current.add(next);
+			// a wave takes everything that is ready and has the same priority
+			if (waves) {
+				while (!ready.isEmpty() && priorities.get(ready.peek()).equals(priorities.get(next))) {
+					Integer candidate = ready.poll();
+					if (!done[candidate]) {
+						current.add(candidate);
+					}
+				}
+			}
+			List<String> wave = new ArrayList<String>(current.size());
+			for (Integer node : current) {
+				done[node] = true;
+				wave.add(ids.get(node));
+			}
+			amountDone += current.size();
+			// only once the whole wave is done can its dependents be released
+			for (Integer node : current) {
+				for (Integer dependent : dependents.get(node)) {
+					if (--remaining[dependent] == 0 && !done[dependent]) {
+						ready.add(dependent);
+					}
+				}
+			}
+			if (waves || result.isEmpty()) {
+				result.add(wave);
+			}
+			else {
+				result.get(0).addAll(wave);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * The strongly connected components with more than one node (Tarjan's algorithm), each of these contains at least one cycle
+	 * The traversal is iterative so deep dependency chains can not overflow the stack
+	 */
+	public List<List<String>> getCycles() {
+		int size = ids.size();
+		int[] index = new int[size];
+		int[] lowlink = new int[size];
+		boolean[] onStack = new boolean[size];
+		for (int i = 0; i < size; i++) {
+			index[i] = -1;
+		}
+		List<List<Integer>> adjacency = new ArrayList<List<Integer>>(size);
+		for (Set<Integer> dependency : dependencies) {
+			adjacency.add(new ArrayList<Integer>(dependency));
+		}
+		Deque<Integer> stack = new ArrayDeque<Integer>();
+		List<List<String>> cycles = new ArrayList<List<String>>();
+		int counter = 0;
+		for (int start = 0; start < size; start++) {
+			if (index[start] >= 0) {
+				continue;
+			}
+			// each frame holds the node and the position in its dependencies
+			Deque<int[]> work = new ArrayDeque<int[]>();
+			index[start] = lowlink[start] = counter++;
+			stack.push(start);
+			onStack[start] = true;
+			work.push(new int[] { start, 0 });
+			while (!work.isEmpty()) {
+				int[] frame = work.peek();
+				int node = frame[0];
+				List<Integer> neighbours = adjacency.get(node);
+				if (frame[1] < neighbours.size()) {
+					int neighbour = neighbours.get(frame[1]++);
+					if (index[neighbour] < 0) {
+						index[neighbour] = lowlink[neighbour] = counter++;
+						stack.push(neighbour);
+						onStack[neighbour] = true;
+						work.push(new int[] { neighbour, 0 });
+					}
+					else if (onStack[neighbour]) {
+						lowlink[node] = Math.min(lowlink[node], index[neighbour]);
+					}
+				}
+				else {
+					work.pop();
+					if (!work.isEmpty()) {
+						int parent = work.peek()[0];
+						lowlink[parent] = Math.min(lowlink[parent], lowlink[node]);
+					}
+					if (lowlink[node] == index[node]) {
+						List<String> component = new ArrayList<String>();
+						int member;
+						do {
+							member = stack.pop();
+							onStack[member] = false;
+							component.add(ids.get(member));
+						}
+						while (member != node);
+						if (component.size() > 1) {
+							Collections.sort(component);
+							cycles.add(component);
+						}
+					}
+				}
+			}
+		}
+		return cycles;
+	}
+
+	private Comparator<Integer> getComparator() {
+		return new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				int comparison = priorities.get(o1) - priorities.get(o2);
+				return comparison == 0 ? o1 - o2 : comparison;
+			}
+		};
+	}
+}
@@ -0,0 +1,45 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.server;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.Member;
+import com.hazelcast.core.Partition;
+
+import be.nabu.eai.server.api.PartitionResolver;
+
+/**
+ * Uses the hazelcast partitioning so tasks end up on the member that holds the map entries for the same key
+ * The member name is taken from the "name" attribute that we set on each member at startup
+ */
+public class HazelcastPartitionResolver implements PartitionResolver {
+
+	private HazelcastInstance instance;
+
+	public HazelcastPartitionResolver(HazelcastInstance instance) {
+		this.instance = instance;
+	}
+
+	@Override
+	public String getOwner(Object key) {
+		Partition partition = instance.getPartitionService().getPartition(key);
+		Member owner = partition == null ? null : partition.getOwner();
+		return owner == null ? null : owner.getStringAttribute("name");
+	}
+}
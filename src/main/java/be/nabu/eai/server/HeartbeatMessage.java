@@ -18,11 +18,20 @@
 package be.nabu.eai.server;
 
 import java.io.Serializable;
+import java.util.List;
 
 public class HeartbeatMessage implements Serializable {
 	private static final long serialVersionUID = 1L;
 
 	private String name, group;
+	// the aliases the member runs tasks for
+	private List<String> aliases;
+	// when the heartbeat was sent
+	private long timestamp;
+	// the system load and the heap usage, both as a percentage
+	private double cpu, heap;
+	// the amount of tasks waiting in the local pool and the amount of services that are running
+	private int queueDepth, activeServices;
 
 	public String getName() {
 		return name;
@@ -39,5 +48,53 @@ public class HeartbeatMessage implements Serializable {
 	public void setGroup(String group) {
 		this.group = group;
 	}
+
+	public List<String> getAliases() {
+		return aliases;
+	}
+
+	public void setAliases(List<String> aliases) {
+		this.aliases = aliases;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	public double getCpu() {
+		return cpu;
+	}
+
+	public void setCpu(double cpu) {
+		this.cpu = cpu;
+	}
+
+	public double getHeap() {
+		return heap;
+	}
+
+	public void setHeap(double heap) {
+		this.heap = heap;
+	}
+
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+
+	public void setQueueDepth(int queueDepth) {
+		this.queueDepth = queueDepth;
+	}
+
+	public int getActiveServices() {
+		return activeServices;
+	}
+
+	public void setActiveServices(int activeServices) {
+		this.activeServices = activeServices;
+	}
 	
 }
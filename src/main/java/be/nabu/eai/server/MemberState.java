@@ -19,7 +19,9 @@ package be.nabu.eai.server;
 
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import be.nabu.libs.metrics.core.sinks.LimitedHistorySinkWithStatistics;
 
@@ -38,6 +40,8 @@ public class MemberState {
 	
 	// identity of the member
 	private String group, name;
+	// the aliases as published in the heartbeat, they are unknown until the first one arrives
+	private volatile List<String> aliases;
 	
 	// when the relevant peak started, we don't want to do repeat warnings in the same peak
 	// we also keep track of when we reported it, so we don't report it multiple times
@@ -50,6 +54,12 @@ public class MemberState {
 	private LimitedHistorySinkWithStatistics cpuSink = new LimitedHistorySinkWithStatistics(WINDOW / INTERVAL);
 	private LimitedHistorySinkWithStatistics memorySink = new LimitedHistorySinkWithStatistics(WINDOW / INTERVAL);
 	private LimitedHistorySinkWithStatistics fileDescriptorSink = new LimitedHistorySinkWithStatistics(WINDOW / INTERVAL);
+	
+	// the latest reported work load
+	private int queueDepth, activeServices;
+	private double cpu, heap;
+	// the tasks we routed to this member since its last heartbeat, this prevents us from sending everything to the same member in between heartbeats
+	private AtomicInteger routed = new AtomicInteger();
 
 	public String getGroup() {
 		return group;
@@ -63,6 +73,10 @@ public class MemberState {
 		return name;
 	}
 
+	public List<String> getAliases() {
+		return aliases;
+	}
+
 	public void setName(String name) {
 		this.name = name;
 	}
@@ -106,4 +120,74 @@ public class MemberState {
 	public void setLastHeartbeat(Date lastHeartbeat) {
 		this.lastHeartbeat = lastHeartbeat;
 	}
+
+	/**
+	 * Update the state with a heartbeat sent by the member
+	 * Liveness is based on when we received it, the clock of the sender may differ from ours, its timestamp is only used for the history
+	 */
+	public void beat(HeartbeatMessage message) {
+		lastHeartbeat = new Date();
+		cpu = message.getCpu();
+		heap = message.getHeap();
+		queueDepth = message.getQueueDepth();
+		activeServices = message.getActiveServices();
+		aliases = message.getAliases();
+		cpuSink.push(message.getTimestamp(), Math.round(message.getCpu()));
+		memorySink.push(message.getTimestamp(), Math.round(message.getHeap()));
+		routed.set(0);
+	}
+	
+	/**
+	 * Whether tasks for the given target (a member name, group or alias) can run on this member
+	 */
+	public boolean isTarget(String target) {
+		List<String> aliases = this.aliases;
+		return target.equals(name) || target.equals(group) || (aliases != null && aliases.contains(target));
+	}
+	
+	/**
+	 * Whether we have received a heartbeat recently enough to trust the reported load
+	 */
+	public boolean isAlive() {
+		return lastHeartbeat != null && new Date().getTime() - lastHeartbeat.getTime() <= INTERVAL * MISSED_BEATS * 1000l;
+	}
+	
+	/**
+	 * The outstanding work on this member, the cpu is used to break ties
+	 */
+	public double getLoad() {
+		return queueDepth + activeServices + routed.get() + (cpu / 100);
+	}
+	
+	public void routed() {
+		routed.incrementAndGet();
+	}
+
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+
+	public int getActiveServices() {
+		return activeServices;
+	}
+
+	public double getCpu() {
+		return cpu;
+	}
+
+	public double getHeap() {
+		return heap;
+	}
+
+	public LimitedHistorySinkWithStatistics getCpuSink() {
+		return cpuSink;
+	}
+
+	public LimitedHistorySinkWithStatistics getMemorySink() {
+		return memorySink;
+	}
+
+	public LimitedHistorySinkWithStatistics getFileDescriptorSink() {
+		return fileDescriptorSink;
+	}
 }
@@ -0,0 +1,276 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.eai.repository.api.Repository;
+
+/**
+ * The transitive closure of the references between artifacts, each closure is stored as a bitset over the known artifact ids.
+ * Closures are computed lazily and reuse the closures of their references, the index is persisted so a restart does not need to recompute them.
+ * To detect changes, we keep the direct references of every artifact a closure was built from, when they differ from what the repository reports, the artifact and every closure that contains it are invalidated.
+ */
+public class ReferenceIndex {
+
+	private static final int MAGIC = 0x4e524958;
+	private static final int VERSION = 1;
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private File file;
+	private List<String> ids = new ArrayList<String>();
+	private Map<String, Integer> indexes = new HashMap<String, Integer>();
+	// the direct references of each artifact at the time we calculated its closure
+	private Map<Integer, int[]> direct = new HashMap<Integer, int[]>();
+	private Map<Integer, BitSet> closures = new HashMap<Integer, BitSet>();
+	private boolean dirty;
+
+	public ReferenceIndex(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * All the artifacts the given artifact (transitively) references
+	 */
+	public synchronized Set<String> getAllReferences(Repository repository, String id) {
+		BitSet closure = getClosure(repository, index(id));
+		Set<String> references = new LinkedHashSet<String>();
+		for (int i = closure.nextSetBit(0); i >= 0; i = closure.nextSetBit(i + 1)) {
+			references.add(ids.get(i));
+		}
+		return references;
+	}
+
+	/**
+	 * Make sure the persisted closures still match the repository, this is cheap as it only compares the direct references
+	 */
+	public synchronized void validate(Repository repository) {
+		List<Integer> changed = new ArrayList<Integer>();
+		for (Map.Entry<Integer, int[]> entry : direct.entrySet()) {
+			if (!Arrays.equals(entry.getValue(), getDirect(repository, entry.getKey()))) {
+				changed.add(entry.getKey());
+			}
+		}
+		for (Integer index : changed) {
+			invalidate(index);
+		}
+		if (!changed.isEmpty()) {
+			logger.debug("Invalidated references of " + changed.size() + " changed artifact(s)");
+		}
+	}
+
+	/**
+	 * The artifact has changed, forget its closure and every closure it is a part of
+	 */
+	public synchronized void invalidate(String id) {
+		Integer index = indexes.get(id);
+		if (index != null) {
+			invalidate(index);
+		}
+	}
+
+	private void invalidate(int index) {
+		direct.remove(index);
+		closures.remove(index);
+		List<Integer> dependents = new ArrayList<Integer>();
+		for (Map.Entry<Integer, BitSet> entry : closures.entrySet()) {
+			if (entry.getValue().get(index)) {
+				dependents.add(entry.getKey());
+			}
+		}
+		for (Integer dependent : dependents) {
+			closures.remove(dependent);
+			direct.remove(dependent);
+		}
+		dirty = true;
+	}
+
+	private BitSet getClosure(Repository repository, int index) {
+		BitSet closure = closures.get(index);
+		if (closure == null) {
+			closure = new BitSet();
+			Deque<Integer> todo = new ArrayDeque<Integer>();
+			todo.add(index);
+			BitSet expanded = new BitSet();
+			while (!todo.isEmpty()) {
+				int current = todo.poll();
+				if (expanded.get(current)) {
+					continue;
+				}
+				expanded.set(current);
+				// reuse what we already know
+				BitSet known = current == index ? null : closures.get(current);
+				if (known != null) {
+					closure.or(known);
+					continue;
+				}
+				int[] references = getDirect(repository, current);
+				// remember what the closure was based on so we can validate it later
+				direct.put(current, references);
+				for (int reference : references) {
+					closure.set(reference);
+					todo.add(reference);
+				}
+			}
+			closures.put(index, closure);
+			dirty = true;
+		}
+		return closure;
+	}
+
+	private int[] getDirect(Repository repository, int index) {
+		List<String> references = repository.getReferences(ids.get(index));
+		if (references == null || references.isEmpty()) {
+			return new int[0];
+		}
+		int[] result = new int[references.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = index(references.get(i));
+		}
+		Arrays.sort(result);
+		return result;
+	}
+
+	private int index(String id) {
+		Integer index = indexes.get(id);
+		if (index == null) {
+			index = ids.size();
+			ids.add(id);
+			indexes.put(id, index);
+		}
+		return index;
+	}
+
+	public synchronized void load() {
+		if (file == null || !file.exists()) {
+			return;
+		}
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+				logger.warn("Ignoring reference index with unknown format: " + file);
+				return;
+			}
+			int amountOfIds = input.readInt();
+			List<String> ids = new ArrayList<String>(amountOfIds);
+			for (int i = 0; i < amountOfIds; i++) {
+				ids.add(input.readUTF());
+			}
+			Map<Integer, int[]> direct = new HashMap<Integer, int[]>();
+			Map<Integer, BitSet> closures = new HashMap<Integer, BitSet>();
+			int amountOfEntries = input.readInt();
+			for (int i = 0; i < amountOfEntries; i++) {
+				int index = input.readInt();
+				int[] references = new int[input.readInt()];
+				for (int j = 0; j < references.length; j++) {
+					references[j] = input.readInt();
+				}
+				direct.put(index, references);
+				if (input.readBoolean()) {
+					long[] words = new long[input.readInt()];
+					for (int j = 0; j < words.length; j++) {
+						words[j] = input.readLong();
+					}
+					closures.put(index, BitSet.valueOf(words));
+				}
+			}
+			this.ids = ids;
+			this.indexes.clear();
+			for (int i = 0; i < ids.size(); i++) {
+				this.indexes.put(ids.get(i), i);
+			}
+			this.direct = direct;
+			this.closures = closures;
+			this.dirty = false;
+			logger.info("Loaded reference index with " + closures.size() + " closure(s) from: " + file);
+		}
+		catch (Exception e) {
+			logger.warn("Could not load reference index: " + file, e);
+		}
+	}
+
+	public synchronized void save() {
+		if (file == null || !dirty) {
+			return;
+		}
+		// write to a temporary file first so a crash does not leave a corrupt index
+		File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+		try {
+			try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+				output.writeInt(MAGIC);
+				output.writeInt(VERSION);
+				output.writeInt(ids.size());
+				for (String id : ids) {
+					output.writeUTF(id);
+				}
+				// every artifact we know the direct references of, closures without them can not be validated and are not persisted
+				List<Integer> entries = new ArrayList<Integer>(direct.keySet());
+				Collections.sort(entries);
+				output.writeInt(entries.size());
+				for (Integer index : entries) {
+					output.writeInt(index);
+					int[] references = direct.get(index);
+					output.writeInt(references.length);
+					for (int reference : references) {
+						output.writeInt(reference);
+					}
+					BitSet closure = closures.get(index);
+					output.writeBoolean(closure != null);
+					if (closure != null) {
+						long[] words = closure.toLongArray();
+						output.writeInt(words.length);
+						for (long word : words) {
+							output.writeLong(word);
+						}
+					}
+				}
+			}
+			if (file.exists() && !file.delete()) {
+				throw new IOException("Could not replace: " + file);
+			}
+			if (!temporary.renameTo(file)) {
+				throw new IOException("Could not rename " + temporary + " to " + file);
+			}
+			dirty = false;
+		}
+		catch (Exception e) {
+			logger.warn("Could not save reference index: " + file, e);
+		}
+	}
+}
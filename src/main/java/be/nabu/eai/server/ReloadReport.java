@@ -0,0 +1,78 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.server;
+
+import java.util.Date;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+@XmlRootElement
+public class ReloadReport {
+	private Date started, stopped;
+	// if we had nothing to compare against, we did a full reload
+	private boolean full;
+	// the artifacts whose content changed, was added or was removed
+	private List<String> changed, added, removed;
+	// the artifacts that were (re)started, in order
+	private List<String> restarted;
+
+	public Date getStarted() {
+		return started;
+	}
+	public void setStarted(Date started) {
+		this.started = started;
+	}
+	public Date getStopped() {
+		return stopped;
+	}
+	public void setStopped(Date stopped) {
+		this.stopped = stopped;
+	}
+	public boolean isFull() {
+		return full;
+	}
+	public void setFull(boolean full) {
+		this.full = full;
+	}
+	public List<String> getChanged() {
+		return changed;
+	}
+	public void setChanged(List<String> changed) {
+		this.changed = changed;
+	}
+	public List<String> getAdded() {
+		return added;
+	}
+	public void setAdded(List<String> added) {
+		this.added = added;
+	}
+	public List<String> getRemoved() {
+		return removed;
+	}
+	public void setRemoved(List<String> removed) {
+		this.removed = removed;
+	}
+	public List<String> getRestarted() {
+		return restarted;
+	}
+	public void setRestarted(List<String> restarted) {
+		this.restarted = restarted;
+	}
+}
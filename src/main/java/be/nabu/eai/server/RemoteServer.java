@@ -52,8 +52,6 @@ import be.nabu.libs.services.api.ServiceRunnableObserver;
 import be.nabu.libs.types.SimpleTypeWrapperFactory;
 import be.nabu.libs.types.api.ComplexContent;
 import be.nabu.libs.types.base.SimpleElementImpl;
-import be.nabu.libs.types.binding.api.Window;
-import be.nabu.libs.types.binding.xml.XMLBinding;
 import be.nabu.libs.types.structure.Structure;
 import be.nabu.utils.io.IOUtils;
 import be.nabu.utils.io.api.ByteBuffer;
@@ -73,6 +71,8 @@ public class RemoteServer implements NamedServiceRunner {
 	private Principal principal;
 	private ClientAuthenticationHandler authenticationHandler;
 	private Map<String, String> settings = new HashMap<String, String>();
+	// whether we send and ask for the binary (cbor) encoding rather than xml, the remote server must support it
+	private boolean binary;
 
 	public RemoteServer(HTTPClient client, URI endpoint, Principal principal, Charset charset) {
 		this.client = client;
@@ -287,22 +287,29 @@ public class RemoteServer implements NamedServiceRunner {
 		String serviceContext = globalContext == null ? null : (String) globalContext.get("service.context");
 		String additionalFeatures = globalContext == null ? null : (String) globalContext.get("features.additional");
 		URI target = URIUtils.getChild(endpoint, "/invoke/" + ((DefinedService) service).getId());
-		XMLBinding xmlBinding = new XMLBinding(input.getType(), charset);
 		ServiceException exception = null;
 		ComplexContent result = null;
 		try {
 			ByteArrayOutputStream output = new ByteArrayOutputStream();
-			xmlBinding.marshal(output, input);
+			if (binary) {
+				CBORCodec.marshal(output, input);
+			}
+			else {
+				BindingCache.marshalXML(output, input, charset);
+			}
 			byte [] content = output.toByteArray();
 			DefaultHTTPRequest request = new DefaultHTTPRequest(
 				"POST",
 				target.getPath(),
 				new PlainMimeContentPart(null, IOUtils.wrap(content, true),
 					new MimeHeader("Content-Length", "" + content.length),
-					new MimeHeader("Content-Type", "application/xml"),
+					new MimeHeader("Content-Type", binary ? CBORCodec.CONTENT_TYPE : "application/xml"),
 					new MimeHeader("Host", endpoint.getAuthority())
 				)
 			);
+			if (binary) {
+				request.getContent().setHeader(new MimeHeader("Accept", CBORCodec.CONTENT_TYPE));
+			}
 			if (executionContext.getSecurityContext().getToken() != null) {
 				request.getContent().setHeader(new MimeHeader("Run-As", executionContext.getSecurityContext().getToken().getName()));
 				request.getContent().setHeader(new MimeHeader("Run-As-Realm", executionContext.getSecurityContext().getToken().getRealm()));
@@ -328,11 +335,13 @@ public class RemoteServer implements NamedServiceRunner {
 				if ("text/plain".equals(MimeUtils.getContentType(response.getContent().getHeaders()))) {
 					exception = new ServiceException("REMOTE-0", new String(IOUtils.toBytes((((ContentPart) response.getContent()).getReadable()))));
 				}
+				// a server that supports it answers in the binary format we asked for
+				else if (CBORCodec.CONTENT_TYPE.equals(MimeUtils.getContentType(response.getContent().getHeaders()))) {
+					result = CBORCodec.unmarshal(IOUtils.toInputStream(((ContentPart) response.getContent()).getReadable()), service.getServiceInterface().getOutputDefinition());
+				}
 				else {
-					XMLBinding resultBinding = new XMLBinding(service.getServiceInterface().getOutputDefinition(), charset);
-					resultBinding.setAllowSuperTypes(true);
 					try {
-						result = resultBinding.unmarshal(IOUtils.toInputStream(((ContentPart) response.getContent()).getReadable()), new Window[0]);
+						result = BindingCache.unmarshalXML(IOUtils.toInputStream(((ContentPart) response.getContent()).getReadable()), service.getServiceInterface().getOutputDefinition(), charset, true);
 					}
 					catch (Exception e) {
 						// if we can't parse the content, show the original XML atm
@@ -370,5 +379,12 @@ public class RemoteServer implements NamedServiceRunner {
 	public void setPrincipal(Principal principal) {
 		this.principal = principal;
 	}
+
+	public boolean isBinary() {
+		return binary;
+	}
+	public void setBinary(boolean binary) {
+		this.binary = binary;
+	}
 	
 }
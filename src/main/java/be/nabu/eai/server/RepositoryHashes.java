@@ -0,0 +1,128 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+/**
+ * Calculates a content hash for every artifact in the repository, an artifact is a folder that contains a node.xml.
+ * The hash of an artifact covers all the resources in its folder, including internal folders (e.g. public or private resources) but excluding child artifacts, they have their own hash.
+ */
+public class RepositoryHashes {
+
+	private static final String NODE = "node.xml";
+
+	public static Map<String, String> calculate(ResourceContainer<?> root) throws IOException {
+		Map<String, String> hashes = new HashMap<String, String>();
+		walk(root, null, hashes);
+		return hashes;
+	}
+
+	private static boolean isArtifact(ResourceContainer<?> container) {
+		return container.getChild(NODE) != null;
+	}
+
+	private static void walk(ResourceContainer<?> container, String parentId, Map<String, String> hashes) throws IOException {
+		for (Resource child : container) {
+			if (!(child instanceof ResourceContainer) || child.getName().startsWith(".")) {
+				continue;
+			}
+			String id = parentId == null ? child.getName() : parentId + "." + child.getName();
+			if (isArtifact((ResourceContainer<?>) child)) {
+				hashes.put(id, hash((ResourceContainer<?>) child));
+			}
+			walk((ResourceContainer<?>) child, id, hashes);
+		}
+	}
+
+	private static String hash(ResourceContainer<?> container) throws IOException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			update(digest, container, "");
+			byte[] bytes = digest.digest();
+			StringBuilder builder = new StringBuilder();
+			for (byte single : bytes) {
+				builder.append(String.format("%02x", single));
+			}
+			return builder.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void update(MessageDigest digest, ResourceContainer<?> container, String path) throws IOException {
+		// iteration order is not guaranteed, sort by name for a stable hash
+		List<Resource> children = new ArrayList<Resource>();
+		for (Resource child : container) {
+			children.add(child);
+		}
+		Collections.sort(children, new Comparator<Resource>() {
+			@Override
+			public int compare(Resource o1, Resource o2) {
+				return o1.getName().compareTo(o2.getName());
+			}
+		});
+		byte[] buffer = new byte[8192];
+		for (Resource child : children) {
+			if (child.getName().startsWith(".")) {
+				continue;
+			}
+			if (child instanceof ResourceContainer) {
+				// child artifacts are hashed separately
+				if (isArtifact((ResourceContainer<?>) child)) {
+					continue;
+				}
+				// the name is part of the hash so renames are picked up
+				digest.update((path + child.getName() + "/").getBytes("UTF-8"));
+				update(digest, (ResourceContainer<?>) child, path + child.getName() + "/");
+			}
+			else if (child instanceof ReadableResource) {
+				digest.update((path + child.getName()).getBytes("UTF-8"));
+				ReadableContainer<ByteBuffer> readable = ((ReadableResource) child).getReadable();
+				try {
+					InputStream input = IOUtils.toInputStream(readable);
+					int read;
+					while ((read = input.read(buffer)) > 0) {
+						digest.update(buffer, 0, read);
+					}
+				}
+				finally {
+					readable.close();
+				}
+			}
+		}
+	}
+}
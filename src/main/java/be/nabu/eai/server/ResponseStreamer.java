@@ -0,0 +1,247 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes content from a small dedicated pool into a bounded pipe, the caller reads it from the other end.
+ * A failure while writing is passed on to the reader so its next read throws instead of ending the content normally.
+ * If the client stops reading for longer than the timeout, the pipe is broken on both ends.
+ * The writer may take longer to produce content (e.g. a slow service in a batch), the reader only gives up after the read timeout, by default it waits until the writer ends.
+ */
+public class ResponseStreamer {
+
+	public static interface Writer {
+		public void write(OutputStream output) throws IOException;
+	}
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private int bufferSize;
+	private long timeout, readTimeout;
+	private ThreadPoolExecutor executor;
+
+	public ResponseStreamer(int threads, int bufferSize, long timeout) {
+		this(threads, bufferSize, timeout, 0);
+	}
+
+	public ResponseStreamer(int threads, int bufferSize, long timeout, long readTimeout) {
+		this.bufferSize = bufferSize;
+		this.timeout = timeout;
+		this.readTimeout = readTimeout;
+		// no queue, if all threads are busy the caller should not stream
+		this.executor = new ThreadPoolExecutor(threads, threads, 0l, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+			private AtomicLong counter = new AtomicLong();
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable);
+				thread.setName("response-stream-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Starts writing in the background and returns the stream to read the result from
+	 * Throws a RejectedExecutionException if there is no capacity to stream, the caller should fall back to buffering
+	 */
+	public InputStream stream(final String name, final Writer writer) throws RejectedExecutionException {
+		final Pipe pipe = new Pipe(bufferSize, timeout, readTimeout);
+		final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				Thread thread = Thread.currentThread();
+				ClassLoader original = thread.getContextClassLoader();
+				thread.setContextClassLoader(classLoader);
+				try {
+					writer.write(pipe.getOutput());
+					pipe.getOutput().close();
+				}
+				catch (Exception e) {
+					logger.error("Could not stream: " + name, e);
+					pipe.fail(e);
+				}
+				finally {
+					thread.setContextClassLoader(original);
+				}
+			}
+		});
+		return pipe.getInput();
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private static class Pipe {
+		private byte [] buffer;
+		private int position, length;
+		// how long the writer waits for the reader to make room and how long the reader waits for content (0 is until the writer ends)
+		private long timeout, readTimeout;
+		private boolean writerClosed, readerClosed;
+		private Exception failure;
+		private OutputStream output = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+			@Override
+			public void write(byte[] bytes, int offset, int length) throws IOException {
+				Pipe.this.write(bytes, offset, length);
+			}
+			@Override
+			public void close() {
+				closeWriter();
+			}
+		};
+		private InputStream input = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte [] single = new byte[1];
+				int read = read(single, 0, 1);
+				return read < 0 ? -1 : single[0] & 0xff;
+			}
+			@Override
+			public int read(byte[] bytes, int offset, int length) throws IOException {
+				return Pipe.this.read(bytes, offset, length);
+			}
+			@Override
+			public int available() {
+				synchronized(Pipe.this) {
+					return length;
+				}
+			}
+			@Override
+			public void close() {
+				closeReader();
+			}
+		};
+
+		Pipe(int size, long timeout, long readTimeout) {
+			this.buffer = new byte[size];
+			this.timeout = timeout;
+			this.readTimeout = readTimeout;
+		}
+
+		synchronized void write(byte[] bytes, int offset, int amount) throws IOException {
+			while (amount > 0) {
+				long deadline = System.currentTimeMillis() + timeout;
+				while (length == buffer.length && !readerClosed && failure == null) {
+					await(deadline, "The reader did not consume the content within " + timeout + "ms");
+				}
+				if (readerClosed) {
+					throw new IOException("The reader is closed");
+				}
+				else if (failure != null) {
+					throw new IOException("The stream is broken", failure);
+				}
+				int end = (position + length) % buffer.length;
+				int chunk = Math.min(amount, Math.min(buffer.length - length, buffer.length - end));
+				System.arraycopy(bytes, offset, buffer, end, chunk);
+				length += chunk;
+				offset += chunk;
+				amount -= chunk;
+				notifyAll();
+			}
+		}
+
+		synchronized int read(byte[] bytes, int offset, int amount) throws IOException {
+			if (amount == 0) {
+				return 0;
+			}
+			long deadline = readTimeout > 0 ? System.currentTimeMillis() + readTimeout : 0;
+			while (length == 0 && !writerClosed && failure == null && !readerClosed) {
+				await(deadline, "No content was written within " + readTimeout + "ms");
+			}
+			// a failure takes precedence over any remaining content, the reader must not mistake a partial result for a complete one
+			if (failure != null) {
+				throw new IOException("Could not write the content", failure);
+			}
+			else if (readerClosed) {
+				throw new IOException("The reader is closed");
+			}
+			else if (length == 0) {
+				return -1;
+			}
+			int chunk = Math.min(amount, Math.min(length, buffer.length - position));
+			System.arraycopy(buffer, position, bytes, offset, chunk);
+			position = (position + chunk) % buffer.length;
+			length -= chunk;
+			notifyAll();
+			return chunk;
+		}
+
+		// a deadline of 0 waits until something changes
+		private void await(long deadline, String message) throws IOException {
+			long remaining = deadline == 0 ? 0 : deadline - System.currentTimeMillis();
+			if (deadline != 0 && remaining <= 0) {
+				IOException exception = new IOException(message);
+				failure = exception;
+				notifyAll();
+				throw exception;
+			}
+			try {
+				wait(remaining);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failure = e;
+				notifyAll();
+				throw new IOException("Interrupted while streaming", e);
+			}
+		}
+
+		synchronized void fail(Exception exception) {
+			if (failure == null) {
+				failure = exception;
+			}
+			notifyAll();
+		}
+
+		synchronized void closeWriter() {
+			writerClosed = true;
+			notifyAll();
+		}
+
+		synchronized void closeReader() {
+			readerClosed = true;
+			notifyAll();
+		}
+
+		OutputStream getOutput() {
+			return output;
+		}
+
+		InputStream getInput() {
+			return input;
+		}
+	}
+}
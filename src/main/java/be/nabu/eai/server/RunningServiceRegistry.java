@@ -0,0 +1,109 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps track of the services that are currently running without a global lock.
+ * Each service id has its own concurrent set and counter so concurrent invocations of different services never contend.
+ */
+public class RunningServiceRegistry {
+
+	private ConcurrentHashMap<String, ServiceEntry> services = new ConcurrentHashMap<String, ServiceEntry>();
+	private AtomicInteger total = new AtomicInteger();
+
+	public RunningService register(String serviceId, String principal) {
+		ServiceEntry entry = services.get(serviceId);
+		if (entry == null) {
+			ServiceEntry newEntry = new ServiceEntry();
+			entry = services.putIfAbsent(serviceId, newEntry);
+			if (entry == null) {
+				entry = newEntry;
+			}
+		}
+		RunningService running = new RunningService(serviceId, principal, Thread.currentThread());
+		entry.running.add(running);
+		entry.count.incrementAndGet();
+		total.incrementAndGet();
+		return running;
+	}
+
+	public void unregister(RunningService running) {
+		ServiceEntry entry = services.get(running.getServiceId());
+		// entries are never removed so this should always be found
+		if (entry != null && entry.running.remove(running)) {
+			entry.count.decrementAndGet();
+			total.decrementAndGet();
+		}
+	}
+
+	public int getRunningCount() {
+		return total.get();
+	}
+
+	public int getRunningCount(String serviceId) {
+		ServiceEntry entry = services.get(serviceId);
+		return entry == null ? 0 : entry.count.get();
+	}
+
+	/**
+	 * A weakly consistent snapshot of everything that is running
+	 */
+	public List<RunningService> getRunning() {
+		List<RunningService> running = new ArrayList<RunningService>();
+		for (ServiceEntry entry : services.values()) {
+			running.addAll(entry.running);
+		}
+		return running;
+	}
+
+	private static class ServiceEntry {
+		private Set<RunningService> running = ConcurrentHashMap.newKeySet();
+		private AtomicInteger count = new AtomicInteger();
+	}
+
+	public static class RunningService {
+		private String serviceId, principal;
+		private Thread thread;
+		private long started;
+
+		RunningService(String serviceId, String principal, Thread thread) {
+			this.serviceId = serviceId;
+			this.principal = principal;
+			this.thread = thread;
+			this.started = System.currentTimeMillis();
+		}
+		public String getServiceId() {
+			return serviceId;
+		}
+		public String getPrincipal() {
+			return principal;
+		}
+		public Thread getThread() {
+			return thread;
+		}
+		public long getStarted() {
+			return started;
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.server;
+
+import java.util.Date;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+@XmlRootElement
+public class RunningServices {
+	private List<RunningServiceSummary> services;
+
+	public List<RunningServiceSummary> getServices() {
+		return services;
+	}
+	public void setServices(List<RunningServiceSummary> services) {
+		this.services = services;
+	}
+
+	public static class RunningServiceSummary {
+		private String serviceId, principal, thread;
+		private Date started;
+		// how long it has been running (in ms)
+		private long age;
+		
+		public String getServiceId() {
+			return serviceId;
+		}
+		public void setServiceId(String serviceId) {
+			this.serviceId = serviceId;
+		}
+		public String getPrincipal() {
+			return principal;
+		}
+		public void setPrincipal(String principal) {
+			this.principal = principal;
+		}
+		public String getThread() {
+			return thread;
+		}
+		public void setThread(String thread) {
+			this.thread = thread;
+		}
+		public Date getStarted() {
+			return started;
+		}
+		public void setStarted(Date started) {
+			this.started = started;
+		}
+		public long getAge() {
+			return age;
+		}
+		public void setAge(long age) {
+			this.age = age;
+		}
+	}
+}
@@ -19,8 +19,6 @@ package be.nabu.eai.server;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -29,8 +27,11 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
 import java.net.URI;
-import java.nio.charset.Charset;
 import java.security.Principal;
 import java.text.ParseException;
 import java.util.ArrayList;
@@ -41,26 +42,39 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import be.nabu.eai.authentication.api.PasswordAuthenticator;
 import be.nabu.eai.repository.EAIRepositoryUtils;
+import be.nabu.eai.repository.RepositoryThreadFactory;
 import be.nabu.eai.repository.EAIResourceRepository;
 import be.nabu.eai.repository.api.ClusteredServer;
+import be.nabu.eai.repository.api.Entry;
 import be.nabu.eai.repository.api.ExecutorServiceProvider;
 import be.nabu.eai.repository.api.MavenRepository;
 import be.nabu.eai.repository.api.Node;
@@ -74,6 +88,8 @@ import be.nabu.eai.repository.logger.NabuLogAppender;
 import be.nabu.eai.repository.util.CombinedAuthenticator;
 import be.nabu.eai.repository.util.NodeUtils;
 import be.nabu.eai.repository.util.SystemPrincipal;
+import be.nabu.eai.server.StartupReport.StartupStep;
+import be.nabu.eai.server.api.PartitionResolver;
 import be.nabu.eai.server.api.ServerListener;
 import be.nabu.eai.server.api.ServerListener.Phase;
 import be.nabu.eai.server.rest.ServerREST;
@@ -110,15 +126,19 @@ import be.nabu.libs.http.server.HTTPServerUtils;
 import be.nabu.libs.http.server.nio.RoutingMessageDataProvider;
 import be.nabu.libs.http.server.rest.RESTHandler;
 import be.nabu.libs.maven.CreateResourceRepositoryEvent;
+import be.nabu.libs.metrics.api.MetricGauge;
+import be.nabu.libs.metrics.api.MetricInstance;
 import be.nabu.libs.maven.DeleteResourceRepositoryEvent;
 import be.nabu.libs.resources.ResourceFactory;
 import be.nabu.libs.resources.ResourceUtils;
 import be.nabu.libs.resources.api.Resource;
 import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.libs.resources.api.features.CacheableResource;
 import be.nabu.libs.resources.remote.server.ResourceREST;
 import be.nabu.libs.resources.snapshot.SnapshotUtils;
 import be.nabu.libs.services.ServiceRunnable;
 import be.nabu.libs.services.ServiceRuntime;
+import be.nabu.libs.services.SimpleServiceResult;
 import be.nabu.libs.services.api.ClusteredServiceRunner;
 import be.nabu.libs.services.api.DefinedService;
 import be.nabu.libs.services.api.ExecutionContext;
@@ -132,8 +152,6 @@ import be.nabu.libs.services.api.ServiceRunner;
 import be.nabu.libs.services.pojo.POJOUtils;
 import be.nabu.libs.types.api.ComplexContent;
 import be.nabu.libs.types.api.ComplexType;
-import be.nabu.libs.types.binding.api.Window;
-import be.nabu.libs.types.binding.xml.XMLBinding;
 import be.nabu.utils.aspects.AspectUtils;
 import be.nabu.utils.cep.api.EventSeverity;
 import be.nabu.utils.cep.impl.ComplexEventImpl;
@@ -147,13 +165,25 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 	public static final String SERVICE_THREAD_POOL = "be.nabu.eai.server.serviceThreadPoolSize";
 	public static final String SERVICE_MAX_CACHE_SIZE = "be.nabu.eai.server.maxCacheSize";
 	public static final String SERVICE_MAX_CACHE_ENTRY_SIZE = "be.nabu.eai.server.maxCacheEntrySize";
+	// how long (in ms) cluster consumers wait before checking again if the local pool is saturated
+	private static final long SATURATION_BACKOFF = 100;
+	// how long (in ms) cluster consumers wait for a task before checking again whether they should stop
+	private static final long CONSUME_POLL_INTERVAL = 1000;
+	// the id under which the server registers its own runtime metrics
+	public static final String METRICS_ID = "$server";
+	// the distributed map that holds large result outputs until the caller picks them up
+	private static final String RESULT_PAYLOADS = "server.result.payload";
+	// the distributed map of members that have left while tasks were targeted at them, the tasks are parked on their queue until they return or the ttl expires
+	private static final String DEPARTED = "server.execute.departed";
 	
 	private Map<String, MemberState> members = new HashMap<String, MemberState>();
+	// how long (ms) tasks stay parked for a departed member before they are dead lettered
+	private long clusterParkedTaskTtl = 1000l * 60 * 60;
 	// whether or not the server is in "offline" mode (default not of course)
 	private boolean offline;
 	private MavenRepository repository;
 	private Logger logger = LoggerFactory.getLogger(getClass());
-	private List<ServiceRunnable> runningServices = new ArrayList<ServiceRunnable>();
+	private RunningServiceRegistry runningServices = new RunningServiceRegistry();
 	private boolean anonymousIsRoot;
 	private boolean enableSnapshots;
 	private int port, listenerPoolSize;
@@ -165,6 +195,44 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 	
 	private List<String> aliases = new ArrayList<String>();
 	private boolean disableStartup = false;
+	// start the artifacts of each dependency wave concurrently
+	private boolean parallelStartup;
+	private int startupThreads = 8;
+	// the maximum time (ms) we wait for a single artifact to start
+	private long startupTimeout = 300000;
+	// the maximum time (ms) the whole shutdown may take and the maximum time we wait for a single artifact to stop
+	private long shutdownTimeout = 60000, shutdownArtifactTimeout = 30000;
+	// while draining we no longer take on new work but let the running services finish
+	private volatile boolean draining;
+	// the maximum time (ms) we wait for running services when draining and whether a shutdown (e.g. SIGTERM) drains first
+	private long drainTimeout = 30000;
+	private boolean drainOnShutdown;
+	// whether the output of a rest invoke is streamed as it is marshalled instead of being buffered in full
+	private boolean streamInvokeOutput;
+	// the threads that marshal streamed outputs, a client that stops reading for longer than the timeout breaks the stream
+	// a slow writer does not, the client waits until the content is complete
+	private ResponseStreamer responseStreamer = new ResponseStreamer(16, 8192, 60000);
+	// the maximum amount of items of a batch invoke that run concurrently
+	private int batchParallelism = 8;
+	// the maximum amount of items in a single batch invoke
+	private int batchMaxItems = 1000;
+	// how long (ms) a single item of a parallel batch may run before it is reported as failed, 0 is no limit
+	private long batchItemTimeout;
+	// the results of asynchronous invocations
+	private AsyncExecutions asyncExecutions = new AsyncExecutions(1000l * 60 * 60, 1024l * 1024 * 64, 1000);
+	// by default there is no allowlist so no callbacks are sent
+	private AsyncCallbacks asyncCallbacks = new AsyncCallbacks(new ArrayList<String>(), 2, 1000, 30000);
+	// keeps track of how long each artifact takes during a (re)start
+	private StartupProfiler profiler = new StartupProfiler();
+	// the persisted transitive references between artifacts
+	private ReferenceIndex referenceIndex;
+	// the content hash of every artifact as it was last loaded, used to detect what changed
+	private volatile Map<String, String> contentHashes;
+	// every new baseline gets a generation, a background calculation that was overtaken by a newer baseline is discarded
+	private AtomicLong contentHashGeneration = new AtomicLong();
+	// the artifacts that are being reloaded by reloadChanged(), only their events are delayed, the rest of the repository is unaffected
+	private volatile Set<String> incrementalIds;
+	private List<NodeEvent> incrementalEvents = Collections.synchronizedList(new ArrayList<NodeEvent>());
 	
 	/**
 	 * This is set to true while the repository is loading
@@ -182,19 +250,50 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 	private Appender<ILoggingEvent> appender;
 	private List<ServerListener> serverListeners;
 	private HTTPServer httpServer;
-	private Thread queueExecutionThread;
+	private List<Thread> queueExecutionThreads = new ArrayList<Thread>();
+	// the amount of threads consuming the cluster execution queue and how many tasks they take at once
+	private int clusterConsumers = 1, clusterBatchSize = 1;
+	// how many cluster tasks we are willing to queue locally on top of the idle threads, queued tasks can no longer be picked up by other members
+	private int clusterQueueAllowance = 0;
+	// outputs larger than this (in bytes) are stored once in a distributed map and the result only carries a reference to it
+	private int clusterResultReferenceThreshold = 1024 * 256;
+	private Thread replyConsumerThread;
+	// how tasks for any member are distributed
+	private Routing clusterRouting = Routing.SHARED;
+	// determines which member owns a key, used to run tasks where their data lives
+	private PartitionResolver partitionResolver;
+	// when set, tasks taken from the cluster queues are leased until they are done (at-least-once)
+	private ServiceExecutionLeases executionLeases;
+	// the lag of each consumed queue
+	private Map<String, AtomicLong> lags = new ConcurrentHashMap<String, AtomicLong>();
+	
+	public enum Routing {
+		// tasks are put on a shared queue, any member with capacity can take them
+		SHARED,
+		// tasks are sent to the member that reported the least outstanding work in its heartbeat
+		LEAST_LOADED
+	}
 	private ExecutorService pool;
 	private CollaborationListener collaborationListener;
 	private boolean shuttingDown;
 	private MultipleCEPProcessor processor;
 	private MultipleMetricStatisticsProcessor metricsStatisticsProcessor;
 	private ComplexEventImpl startupEvent;
-	private Map<String, BatchResultFuture> futures = new HashMap<String, BatchResultFuture>();
+	private Map<String, BatchResultFuture> futures = new ConcurrentHashMap<String, BatchResultFuture>();
 	private Runnable startedListener;
 	private boolean selfMonitor;
 	
 	private List<Runnable> shutdownActions = new ArrayList<Runnable>();
 	
+	// when enabled, service invocations are executed in the server pool rather than the calling thread
+	private boolean async;
+	// marks threads that are currently executing a task for the server pool, it is set by submit() which all pool work goes through
+	private static ThreadLocal<Boolean> poolThread = new ThreadLocal<Boolean>();
+	// how the payloads of cluster executions are encoded
+	private ServiceExecutionCodec executionCodec = new ServiceExecutionCodec(ServiceExecutionCodec.Format.XML, -1);
+	// concurrency limits per service and per folder
+	private ServiceBulkheads bulkheads = new ServiceBulkheads(this);
+	
 	private String imageName, imageVersion, imageEnvironment;
 	private Date imageDate;
 	
@@ -213,27 +312,41 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 			logger.info("Initializing cluster listeners");
 			
 			logger.debug("Subscribing to $any execution");
-			// for $any
-			final ClusterBlockingQueue<ServiceExecutionTask> queue = cluster.queue("server.execute");
-			queueExecutionThread = new Thread(new Runnable() {
-				public void run() {
-					while (!shuttingDown) {
-						try {
-							ServiceExecutionTask task = queue.take();
-							logger.info("Executing task: " + task.getServiceId());
-							Server.this.run(task);
-						}
-						catch (Exception e) {
-							// during shutdown we can no longer get tasks from the queue
-							if (!shuttingDown) {
-								logger.error("Could not execute task", e);
-							}
-						}
+			// for $any: the shared queue that anyone can take from and the queues for the targets we are eligible for
+			for (final String queueName : getConsumedQueues()) {
+				final ClusterBlockingQueue<ServiceExecutionTask> queue = cluster.queue(queueName);
+				String suffix = queueName.equals("server.execute") ? "" : ":" + queueName.substring("server.execute.".length());
+				setGauge("cluster.queue" + suffix, new MetricGauge() {
+					@Override
+					public long getValue() {
+						return queue.size();
+					}
+				});
+				// how long the last task we took had been waiting in the queue
+				final AtomicLong lag = new AtomicLong();
+				lags.put(queueName, lag);
+				setGauge("cluster.lag" + suffix, new MetricGauge() {
+					@Override
+					public long getValue() {
+						return lag.get();
 					}
+				});
+				for (int i = 0; i < Math.max(1, clusterConsumers); i++) {
+					Thread queueExecutionThread = new Thread(new Runnable() {
+						public void run() {
+							consume(queueName, queue);
+						}
+					});
+					queueExecutionThread.setName("cluster-service-executor-" + queueExecutionThreads.size());
+					queueExecutionThread.start();
+					queueExecutionThreads.add(queueExecutionThread);
 				}
-			});
-			queueExecutionThread.setName("cluster-service-executor");
-			queueExecutionThread.start();
+			}
+			
+			if (executionLeases != null) {
+				logger.debug("Starting lease reaper for at-least-once execution");
+				executionLeases.start();
+			}
 			
 			logger.debug("Subscribing to $all execution");
 			// for $all
@@ -241,6 +354,11 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 			topic.subscribe(new ClusterMessageListener<ServiceExecutionTask>() {
 				@Override
 				public void onMessage(ServiceExecutionTask message) {
+					// a broadcast is not redelivered, but a draining server is on its way out anyway
+					if (draining) {
+						logger.warn("Ignoring broadcast task while draining: " + message.getServiceId());
+						return;
+					}
 					try {
 						run(message);
 					}
@@ -250,8 +368,28 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 				}
 			});
 			
+			logger.debug("Consuming result replies");
+			// results for tasks we sent out are sent directly to our own reply queue
+			final ClusterBlockingQueue<ServiceExecutionResult> replies = cluster.queue(getReplyQueue(getName()));
+			replyConsumerThread = new Thread(new Runnable() {
+				public void run() {
+					while (!shuttingDown) {
+						try {
+							feedback(replies.take());
+						}
+						catch (Exception e) {
+							if (!shuttingDown) {
+								logger.error("Could not report result", e);
+							}
+						}
+					}
+				}
+			});
+			replyConsumerThread.setName("cluster-result-consumer");
+			replyConsumerThread.start();
+			
 			logger.debug("Subscribing to result feedback");
-			// feeding back the result
+			// feeding back the result for tasks that did not ask for a direct reply
 			ClusterTopic<ServiceExecutionResult> resultTopic = cluster.topic("server.result");
 			resultTopic.subscribe(new ClusterMessageListener<ServiceExecutionResult>() {
 				@Override
@@ -312,11 +450,220 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 					}
 				}
 			});
+			
+			logger.debug("Publishing heartbeats");
+			final OperatingSystemMXBean operatingSystemMXBean = ManagementFactory.getOperatingSystemMXBean();
+			final MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+			Thread heartbeatThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (!shuttingDown) {
+						try {
+							HeartbeatMessage message = new HeartbeatMessage();
+							message.setName(getName());
+							message.setGroup(repository.getGroup());
+							message.setAliases(repository.getAliases() == null ? null : new ArrayList<String>(repository.getAliases()));
+							message.setTimestamp(new Date().getTime());
+							// the load average is not available on all platforms, in which case it is negative
+							double load = operatingSystemMXBean.getSystemLoadAverage();
+							message.setCpu(load < 0 ? 0 : (load / operatingSystemMXBean.getAvailableProcessors()) * 100);
+							MemoryUsage heapMemoryUsage = memoryMXBean.getHeapMemoryUsage();
+							message.setHeap(heapMemoryUsage.getMax() <= 0 ? 0 : (100.0 * heapMemoryUsage.getUsed()) / heapMemoryUsage.getMax());
+							message.setQueueDepth(pool instanceof ServicePool ? ((ServicePool) pool).getQueueDepth() : 0);
+							message.setActiveServices(runningServices.getRunningCount());
+							heartbeatTopic.publish(message);
+						}
+						catch (Exception e) {
+							if (!shuttingDown) {
+								logger.warn("Could not publish heartbeat", e);
+							}
+						}
+						try {
+							expireParked();
+						}
+						catch (Exception e) {
+							if (!shuttingDown) {
+								logger.warn("Could not check parked tasks", e);
+							}
+						}
+						try {
+							Thread.sleep(MemberState.INTERVAL * 1000l);
+						}
+						catch (InterruptedException e) {
+							break;
+						}
+					}
+				}
+			});
+			heartbeatThread.setDaemon(true);
+			heartbeatThread.setName("cluster-heartbeat");
+			heartbeatThread.start();
+		}
+	}
+	
+	/**
+	 * Takes tasks from the queue in batches and hands them to the local pool
+	 * When the pool is saturated we stop taking work so it remains available for less busy members
+	 */
+	private void consume(String queueName, ClusterBlockingQueue<ServiceExecutionTask> queue) {
+		List<ServiceExecutionTask> batch = new ArrayList<ServiceExecutionTask>();
+		while (!shuttingDown && !draining) {
+			try {
+				int capacity = getPoolCapacity();
+				if (capacity <= 0) {
+					Thread.sleep(SATURATION_BACKOFF);
+					continue;
+				}
+				// we don't block indefinitely so we notice when we are draining without having to interrupt the consumer (which may be running a service itself)
+				ServiceExecutionTask first = queue.poll(CONSUME_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				int additional = Math.min(clusterBatchSize, capacity) - 1;
+				if (additional > 0) {
+					queue.drainTo(batch, additional);
+				}
+				// lease the whole batch before doing anything else with it, this keeps the window in which a crash loses a task as small as possible
+				List<ServiceExecutionLease> leases = new ArrayList<ServiceExecutionLease>(batch.size());
+				for (ServiceExecutionTask task : batch) {
+					leases.add(executionLeases != null && task.getTaskId() != null ? executionLeases.lease(queueName, task) : null);
+				}
+				for (int i = 0; i < batch.size(); i++) {
+					ServiceExecutionTask task = batch.get(i);
+					ServiceExecutionLease lease = leases.get(i);
+					if (task.getEnqueued() > 0) {
+						lags.get(queueName).set(System.currentTimeMillis() - task.getEnqueued());
+					}
+					try {
+						// a targeted task that ended up on a queue we consume but is not meant for us, pass it on to the correct queue
+						// the lease is only acknowledged once it is on the other queue, if we crash in between it is redelivered here and forwarded again
+						if (!isEligible(task)) {
+							logger.debug("Forwarding task " + task.getServiceId() + " to target: " + task.getTarget());
+							getCluster().queue(getExecutionQueue(task.getTarget())).put(task);
+							if (lease != null) {
+								executionLeases.acknowledge(lease);
+							}
+							continue;
+						}
+						logger.info("Executing task: " + task.getServiceId());
+						Server.this.run(task, lease);
+					}
+					catch (Exception e) {
+						logger.error("Could not execute task: " + task.getServiceId(), e);
+						if (lease != null) {
+							executionLeases.fail(lease, e instanceof ServiceException ? ((ServiceException) e).getCode() : e.getClass().getName());
+						}
+					}
+				}
+			}
+			catch (Exception e) {
+				// during shutdown we can no longer get tasks from the queue
+				if (!shuttingDown && !draining) {
+					logger.error("Could not execute task", e);
+				}
+			}
+			finally {
+				batch.clear();
+			}
+		}
+	}
+	
+	/**
+	 * How many more tasks the pool can start right away, plus a small allowance of tasks we are willing to queue locally
+	 * The queue of the pool is not taken into account as a whole: a task waiting in our local queue could have run on an idle member
+	 */
+	private int getPoolCapacity() {
+		if (pool instanceof ServicePool) {
+			ServicePool servicePool = (ServicePool) pool;
+			int idle = Math.max(0, servicePool.getMaximumPoolSize() - servicePool.getActiveCount());
+			int queued = servicePool.getQueue().size();
+			return idle + Math.max(0, Math.min(clusterQueueAllowance - queued, servicePool.getQueue().remainingCapacity()));
 		}
+		return Integer.MAX_VALUE;
 	}
 	
 	private void processHeartbeat(HeartbeatMessage message) {
-		// TODO
+		MemberState state;
+		synchronized(members) {
+			state = members.get(message.getName() + "@" + message.getGroup());
+		}
+		// a heartbeat can arrive before the membership event
+		if (state != null) {
+			state.beat(message);
+		}
+	}
+	
+	/**
+	 * Find the least loaded member that we have recent information about and that matches the target (if it is a member name, group or alias)
+	 */
+	private MemberState getLeastLoadedMember(String target) {
+		MemberState leastLoaded = null;
+		synchronized(members) {
+			boolean targetsMembers = false;
+			if (target != null) {
+				for (MemberState member : members.values()) {
+					if (member.isTarget(target)) {
+						targetsMembers = true;
+						break;
+					}
+				}
+				// probably an alias that no member has published yet, we don't know which members have it
+				if (!targetsMembers && !isRunner(target)) {
+					return null;
+				}
+			}
+			for (MemberState member : members.values()) {
+				if (!member.isAlive()) {
+					continue;
+				}
+				if (targetsMembers && !member.isTarget(target)) {
+					continue;
+				}
+				if (leastLoaded == null || member.getLoad() < leastLoaded.getLoad()) {
+					leastLoaded = member;
+				}
+			}
+		}
+		return leastLoaded;
+	}
+	
+	/**
+	 * Every name, group and alias has its own queue, runners are available on every member so they use the shared queue
+	 */
+	private String getExecutionQueue(String target) {
+		return target == null || isRunner(target) ? "server.execute" : "server.execute." + target;
+	}
+	
+	private boolean isRunner(String target) {
+		return repository.resolve(target) instanceof ServiceRunner;
+	}
+	
+	private Set<String> getConsumedQueues() {
+		Set<String> queues = new LinkedHashSet<String>();
+		queues.add("server.execute");
+		queues.add(getExecutionQueue(getName()));
+		if (repository.getGroup() != null) {
+			queues.add(getExecutionQueue(repository.getGroup()));
+		}
+		if (repository.getAliases() != null) {
+			for (String alias : repository.getAliases()) {
+				queues.add(getExecutionQueue(alias));
+			}
+		}
+		return queues;
+	}
+	
+	/**
+	 * Whether this server can run the given task
+	 */
+	private boolean isEligible(ServiceExecutionTask task) {
+		String target = task.getTarget();
+		return target == null
+			|| isRunner(target)
+			|| target.equals(getName())
+			|| target.equals(repository.getGroup())
+			|| (repository.getAliases() != null && repository.getAliases().contains(target));
 	}
 	
 	private void registerMember(ClusterMember member) {
@@ -327,12 +674,124 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 			memberState.setGroup(member.getGroup());
 			members.put(member.getName() + "@" + member.getGroup(), memberState);
 		}
+		// any tasks that were parked for it are still on its queue
+		ClusterInstance cluster = getCluster();
+		if (cluster != null) {
+			getDeparted(cluster).remove(member.getName());
+		}
 	}
 	private void removeMember(ClusterMember member) {
 		logger.debug("Removing cluster member: " + member.getName());
 		synchronized(members) {
 			members.remove(member.getName() + "@" + member.getGroup());
 		}
+		reroute(member.getName());
+		removeReplies(member.getName());
+		if (executionLeases != null) {
+			executionLeases.requeue(member.getName());
+		}
+	}
+	
+	/**
+	 * Tasks that were routed to a member that has left would never be picked up, we redistribute them
+	 * Only the coordinator does this, otherwise every member would be taking the tasks off the queue and putting them back
+	 * Tasks that were targeted specifically at that member can not run anywhere else, they are parked on its queue in case it returns
+	 */
+	private void reroute(String member) {
+		ClusterInstance cluster = getCluster();
+		if (cluster == null || member == null || member.equals(getName()) || !isCoordinator(cluster)) {
+			return;
+		}
+		Map<String, Long> departed = getDeparted(cluster);
+		ClusterBlockingQueue<ServiceExecutionTask> queue = cluster.queue(getExecutionQueue(member));
+		List<ServiceExecutionTask> tasks = new ArrayList<ServiceExecutionTask>();
+		queue.drainTo(tasks);
+		if (!tasks.isEmpty()) {
+			logger.warn("Rerouting " + tasks.size() + " task(s) that were sent to departed member: " + member);
+		}
+		for (ServiceExecutionTask task : tasks) {
+			try {
+				String queueName = getExecutionQueue(task.getTarget());
+				// the task was meant specifically for that member, no one else can run it, put it back until the member returns
+				if (member.equals(task.getTarget())) {
+					logger.warn("Parking task " + task.getServiceId() + " that was targeted at departed member " + member + " for " + clusterParkedTaskTtl + "ms");
+					departed.putIfAbsent(member, System.currentTimeMillis());
+					queue.put(task);
+					continue;
+				}
+				else if (task.getPartitionKey() != null) {
+					String owner = getLiveOwner(task.getPartitionKey());
+					if (owner != null && !owner.equals(member)) {
+						queueName = getExecutionQueue(owner);
+					}
+				}
+				cluster.queue(queueName).put(task);
+			}
+			catch (Exception e) {
+				logger.error("Could not reroute task " + task.getServiceId() + " from departed member: " + member, e);
+			}
+		}
+	}
+	
+	/**
+	 * Tasks that are parked for a member that has not returned within the ttl are moved to the dead letter queue
+	 * The departures are kept in the cluster so if the coordinator leaves, the next one picks up where it left off
+	 */
+	private void expireParked() throws InterruptedException {
+		ClusterInstance cluster = getCluster();
+		if (cluster == null || !isCoordinator(cluster)) {
+			return;
+		}
+		Map<String, Long> departed = getDeparted(cluster);
+		if (departed.isEmpty()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, Long> entry : new ArrayList<Map.Entry<String, Long>>(departed.entrySet())) {
+			if (now - entry.getValue() > clusterParkedTaskTtl && departed.remove(entry.getKey(), entry.getValue())) {
+				ClusterBlockingQueue<ServiceExecutionTask> queue = cluster.queue(getExecutionQueue(entry.getKey()));
+				List<ServiceExecutionTask> tasks = new ArrayList<ServiceExecutionTask>();
+				queue.drainTo(tasks);
+				for (ServiceExecutionTask task : tasks) {
+					logger.error("Task " + task.getServiceId() + " was parked for departed member " + entry.getKey() + " longer than " + clusterParkedTaskTtl + "ms, moving it to the dead letter queue");
+					task.setLastError("SERVER-DEPARTED");
+					cluster.queue(ServiceExecutionLeases.DEAD_LETTER).put(task);
+					increment("cluster.deadLettered", 1);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * The members are listed from oldest to youngest, the oldest one takes care of the cluster wide chores
+	 */
+	private boolean isCoordinator(ClusterInstance cluster) {
+		for (ClusterMember member : cluster.members()) {
+			return getName().equals(member.getName());
+		}
+		return false;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private Map<String, Long> getDeparted(ClusterInstance cluster) {
+		return (Map<String, Long>) cluster.map(DEPARTED);
+	}
+	
+	/**
+	 * The current owner of the partition for the given key, if it is a member we know of
+	 */
+	private String getLiveOwner(Object key) {
+		String owner = partitionResolver == null ? null : partitionResolver.getOwner(key);
+		if (owner != null) {
+			synchronized(members) {
+				for (MemberState state : members.values()) {
+					if (owner.equals(state.getName())) {
+						return owner;
+					}
+				}
+			}
+		}
+		return null;
 	}
 	
 	private ServiceResult toResult(ServiceExecutionResult execution) {
@@ -345,9 +804,8 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 		if (execution.getOutput() != null) {
 			Artifact service = repository.resolve(execution.getServiceId());
 			if (service instanceof DefinedService) {
-				XMLBinding binding = new XMLBinding(((DefinedService) service).getServiceInterface().getOutputDefinition(), Charset.forName("UTF-8"));
 				try {
-					output = binding.unmarshal(new ByteArrayInputStream(execution.getOutput().getBytes(Charset.forName("UTF-8"))), new Window[0]);
+					output = ServiceExecutionCodec.decode(execution.getOutput(), ((DefinedService) service).getServiceInterface().getOutputDefinition());
 				}
 				catch (Exception e) {
 					exception = new ServiceException("REMOTE-2", "Could not parse output received from remote server", e);
@@ -370,12 +828,104 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 	}
 	
 	private void feedback(ServiceExecutionResult result) {
-		if (futures.containsKey(result.getRunId())) {
-			futures.get(result.getRunId()).addResult(toResult(result));
+		// the output was too big to send along, pick it up (and clean it up) from the distributed map
+		if (result.getOutputReference() != null) {
+			result.setOutput((byte[]) getCluster().map(RESULT_PAYLOADS).remove(result.getOutputReference()));
+		}
+		BatchResultFuture future = result.getRunId() == null ? null : futures.get(result.getRunId());
+		if (future != null) {
+			future.addResult(toResult(result));
+			if (future.isDone()) {
+				futures.remove(result.getRunId());
+			}
+		}
+	}
+	
+	private static String getReplyQueue(String member) {
+		return "server.result." + member;
+	}
+	
+	/**
+	 * Remove all the futures that are done or have expired, nobody is waiting for them anymore
+	 * For expired futures, large outputs that were stored for results that never arrived are removed as well
+	 */
+	private void evictFutures() {
+		Iterator<BatchResultFuture> iterator = futures.values().iterator();
+		while (iterator.hasNext()) {
+			BatchResultFuture future = iterator.next();
+			if (future.isDone() || future.isExpired()) {
+				iterator.remove();
+				if (!future.isDone() && future.getRunId() != null) {
+					removePayloads(future.getRunId());
+				}
+			}
+		}
+	}
+	
+	private void removePayloads(String runId) {
+		ClusterInstance cluster = getCluster();
+		if (cluster != null) {
+			List<String> names = new ArrayList<String>();
+			synchronized(members) {
+				for (MemberState member : members.values()) {
+					names.add(member.getName());
+				}
+			}
+			for (String name : names) {
+				cluster.map(RESULT_PAYLOADS).remove(runId + ":" + name);
+			}
+		}
+	}
+	
+	/**
+	 * Results that were sent to a member that has left will never be picked up, discard them along with their stored outputs
+	 */
+	private void removeReplies(String member) {
+		ClusterInstance cluster = getCluster();
+		if (cluster == null || member == null || member.equals(getName())) {
+			return;
+		}
+		ClusterBlockingQueue<ServiceExecutionResult> queue = cluster.queue(getReplyQueue(member));
+		List<ServiceExecutionResult> results = new ArrayList<ServiceExecutionResult>();
+		queue.drainTo(results);
+		for (ServiceExecutionResult result : results) {
+			if (result.getOutputReference() != null) {
+				cluster.map(RESULT_PAYLOADS).remove(result.getOutputReference());
+			}
+		}
+		if (!results.isEmpty()) {
+			logger.warn("Discarded " + results.size() + " result(s) that were meant for departed member: " + member);
+		}
+	}
+	
+	/**
+	 * The amount of members we expect to run a task for the given target
+	 * Members publish their aliases in their heartbeat so an alias only counts the members that have it
+	 * If no member matches, the target is presumably a runner artifact (which exists on all members) or an alias that has not been published yet
+	 * In the latter case the future does not complete early but at its timeout, with the results that did arrive
+	 */
+	private int getExpectedMembers(String target) {
+		synchronized(members) {
+			if (target != null) {
+				int amount = 0;
+				for (MemberState member : members.values()) {
+					if (member.isTarget(target)) {
+						amount++;
+					}
+				}
+				if (amount > 0) {
+					return amount;
+				}
+			}
+			return members.size();
 		}
 	}
 
 	private Future<ServiceResult> run(ServiceExecutionTask task) throws IOException, ParseException {
+		return run(task, null);
+	}
+	
+	private Future<ServiceResult> run(ServiceExecutionTask task, ServiceExecutionLease lease) throws IOException, ParseException {
 		DefinedService service = (DefinedService) repository.resolve(task.getServiceId());
 		if (service == null) {
 			throw new IllegalArgumentException("Could not find service: " + task.getServiceId());
@@ -400,43 +950,72 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 		if (target != null) {
 			ComplexContent input = null;
 			if (task.getInput() != null) {
-				XMLBinding binding = new XMLBinding(service.getServiceInterface().getInputDefinition(), Charset.forName("UTF-8"));
-				input = binding.unmarshal(new ByteArrayInputStream(task.getInput().getBytes(Charset.forName("UTF-8"))), new Window[0]);
+				input = ServiceExecutionCodec.decode(task.getInput(), service.getServiceInterface().getInputDefinition());
 			}
 			runInPool(service, repository.newExecutionContext(SystemPrincipal.ROOT), input, target, new ResultHandler() {
 				@Override
 				public void handle(ServiceResult result) {
-					ClusterInstance cluster = getCluster();
-					// we should only report our results if we had a run id to tie it to and we are living in a clustered world
-					if (cluster != null && task.getRunId() != null) {
-						ServiceExecutionResult output = new ServiceExecutionResult();
-						output.setRunId(task.getRunId());
-						output.setTarget(getName());
-						output.setServiceId(task.getServiceId());
-						if (result.getOutput() != null) {
-							XMLBinding binding = new XMLBinding(service.getServiceInterface().getInputDefinition(), Charset.forName("UTF-8"));
-							ByteArrayOutputStream baos = new ByteArrayOutputStream();
-							try {
-								binding.marshal(baos, result.getOutput());
+					try {
+						ClusterInstance cluster = getCluster();
+						// we should only report our results if we had a run id to tie it to and we are living in a clustered world
+						if (cluster != null && task.getRunId() != null) {
+							ServiceExecutionResult output = new ServiceExecutionResult();
+							output.setRunId(task.getRunId());
+							output.setTarget(getName());
+							output.setServiceId(task.getServiceId());
+							if (result.getOutput() != null) {
+								try {
+									output.setOutput(executionCodec.encode(result.getOutput()));
+								}
+								catch (IOException e) {
+									throw new RuntimeException(e);
+								}
+							}
+							if (result.getException() != null) {
+								output.setErrorCode(result.getException().getCode());
+								StringWriter writer = new StringWriter();
+								PrintWriter printer = new PrintWriter(writer);
+								result.getException().printStackTrace(printer);
+								printer.flush();
+								output.setErrorLog(writer.toString());
 							}
-							catch (IOException e) {
-								throw new RuntimeException(e);
+							// large outputs are stored once instead of being pushed through the messaging layer
+							if (output.getOutput() != null && clusterResultReferenceThreshold >= 0 && output.getOutput().length > clusterResultReferenceThreshold) {
+								String reference = task.getRunId() + ":" + getName();
+								cluster.map(RESULT_PAYLOADS).put(reference, output.getOutput());
+								output.setOutputReference(reference);
+								output.setOutput(null);
+							}
+							if (task.getReplyTo() != null) {
+								if (!cluster.queue(getReplyQueue(task.getReplyTo())).offer(output)) {
+									logger.warn("Could not send result of " + task.getServiceId() + " to: " + task.getReplyTo());
+									if (output.getOutputReference() != null) {
+										cluster.map(RESULT_PAYLOADS).remove(output.getOutputReference());
+									}
+								}
+							}
+							else {
+								cluster.topic("server.result").publish(output);
 							}
-							output.setOutput(new String(baos.toByteArray(), Charset.forName("UTF-8")));
 						}
-						if (result.getException() != null) {
-							output.setErrorCode(result.getException().getCode());
-							StringWriter writer = new StringWriter();
-							PrintWriter printer = new PrintWriter(writer);
-							result.getException().printStackTrace(printer);
-							printer.flush();
-							output.setErrorLog(writer.toString());
+					}
+					finally {
+						// the task is only done once it has run and its result was handled
+						if (lease != null) {
+							if (result == null || result.getException() == null) {
+								executionLeases.acknowledge(lease);
+							}
+							else {
+								executionLeases.fail(lease, result.getException().getCode());
+							}
 						}
-						cluster.topic("server.result").publish(output);
 					}
 				}
 			});
 		}
+		else if (lease != null) {
+			executionLeases.fail(lease, "SERVER-TARGET");
+		}
 		return null;
 	}
 	
@@ -449,8 +1028,9 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 	}
 	
 	public void runInPool(final Service service, final ExecutionContext context, final ComplexContent content, ServiceRunner runner, ResultHandler handler) {
-		pool.submit(new Runnable() {
+		submit(new Runnable() {
 			public void run() {
+				boolean handled = false;
 				try {
 					ServiceRunner target = runner == null ? Server.this : runner;
 					Future<ServiceResult> run = target.run(service, context, content);
@@ -459,11 +1039,53 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 						logger.error("Could not run service" + (service instanceof DefinedService ? ": " + ((DefinedService) service).getId() : ""), serviceResult.getException());	
 					}
 					if (handler != null) {
+						handled = true;
 						handler.handle(serviceResult);
 					}
 				}
 				catch (Exception e) {
 					logger.error("Failed to run service" + (service instanceof DefinedService ? ": " + ((DefinedService) service).getId() : ""), e);
+					// the handler should always know how it ended
+					if (handler != null && !handled) {
+						handler.handle(new SimpleServiceResult(null, new ServiceException("POOL-1", "Failed to run service", e)));
+					}
+				}
+			}
+		});
+	}
+	
+	public Future<?> submit(Runnable runnable) {
+		return submit(Executors.callable(runnable));
+	}
+	
+	/**
+	 * All work for the server pool should be submitted here: it is marked as running in the pool so nested invocations run inline instead of blocking a pool thread on another pool thread
+	 * The work also inherits the global context (as a copy, the caller can clean up its own) and the service runtime of the caller so nested services keep their parent
+	 */
+	public <T> Future<T> submit(final Callable<T> callable) {
+		final Map<String, Object> globalContext = ServiceRuntime.getGlobalContext();
+		final ServiceRuntime parent = ServiceRuntime.getRuntime();
+		return pool.submit(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				Boolean originalPoolThread = poolThread.get();
+				Map<String, Object> originalContext = ServiceRuntime.getGlobalContext();
+				ServiceRuntime originalRuntime = ServiceRuntime.getRuntime();
+				poolThread.set(true);
+				ServiceRuntime.setGlobalContext(globalContext == null ? null : new HashMap<String, Object>(globalContext));
+				ServiceRuntime.setRuntime(parent);
+				try {
+					return callable.call();
+				}
+				finally {
+					ServiceRuntime.setRuntime(originalRuntime);
+					ServiceRuntime.setGlobalContext(originalContext);
+					if (originalPoolThread == null) {
+						poolThread.remove();
+					}
+					else {
+						poolThread.set(originalPoolThread);
+					}
 				}
 			}
 		});
@@ -595,13 +1217,18 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 			public Void handle(NodeEvent nodeEvent) {
 				if (nodeEvent.isDone()) {
 					logger.debug("[DONE] Receiving " + nodeEvent.getState() + " for " + nodeEvent.getId());
+					// during a (re)load we validate the entire index at once when ordering
+					if (!isRepositoryLoading && !isIncremental(nodeEvent.getId()) && referenceIndex != null) {
+						referenceIndex.invalidate(nodeEvent.getId());
+					}
+					// the types of a reloaded artifact are new instances, drop the bindings for the old ones
+					if (nodeEvent.getState() == NodeEvent.State.UNLOAD || nodeEvent.getState() == NodeEvent.State.RELOAD) {
+						BindingCache.invalidate(nodeEvent.getId());
+					}
 					// a new node is loaded, let's check if we have to set something up
 					if (nodeEvent.getState() == NodeEvent.State.LOAD) {
 						if (StartableArtifact.class.isAssignableFrom(nodeEvent.getNode().getArtifactClass())) {
-							if (isRepositoryLoading) {
-								delayedNodeEvents.add(nodeEvent);
-							}
-							else {
+							if (!delay(nodeEvent)) {
 								start(nodeEvent, true, true);
 							}
 						}
@@ -609,18 +1236,12 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 					else if (nodeEvent.getState() == NodeEvent.State.RELOAD) {
 						try {
 							if (RestartableArtifact.class.isAssignableFrom(nodeEvent.getNode().getArtifactClass())) {
-								if (isRepositoryLoading) {
-									delayedNodeEvents.add(nodeEvent);
-								}
-								else {
+								if (!delay(nodeEvent)) {
 									restart((RestartableArtifact) nodeEvent.getNode().getArtifact(), true);
 								}
 							}
 							else if (StartableArtifact.class.isAssignableFrom(nodeEvent.getNode().getArtifactClass())) {
-								if (isRepositoryLoading) {
-									delayedNodeEvents.add(nodeEvent);
-								}
-								else {
+								if (!delay(nodeEvent)) {
 									start((StartableArtifact) nodeEvent.getNode().getArtifact(), true, true);
 								}
 							}
@@ -637,10 +1258,7 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 						if (DefinedService.class.isAssignableFrom(nodeEvent.getNode().getArtifactClass())) {
 							// if it's eager, execute it
 							if (NodeUtils.isEager(nodeEvent.getNode())) {
-								if (isRepositoryLoading) {
-									delayedNodeEvents.add(nodeEvent);
-								}
-								else {
+								if (!delay(nodeEvent)) {
 									run(nodeEvent);
 								}
 							}
@@ -700,7 +1318,7 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 							// all the artifacts are loaded but not yet started
 							for (ServerListener serverListener : serverListeners) {
 								if (serverListener.getPhase() == Phase.REPOSITORY_LOADED) {
-									serverListener.listen(Server.this, getHTTPServer());
+									listen(serverListener);
 								}
 							}
 						}
@@ -718,49 +1336,25 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 								items.add(next.getId());
 							}
 						}
-						orderNodes(repository, delayedNodeEvents);
-						// TODO: load in dependency order!
-						List<TwoPhaseStartableArtifact> twoPhasers = new ArrayList<TwoPhaseStartableArtifact>();
-						for (NodeEvent delayedNodeEvent : delayedNodeEvents) {
-							try {
-								if (DefinedService.class.isAssignableFrom(delayedNodeEvent.getNode().getArtifactClass()) && NodeUtils.isEager(delayedNodeEvent.getNode())) {
-									run(delayedNodeEvent);
-								}
-								else if (delayedNodeEvent.getState() == State.RELOAD && RestartableArtifact.class.isAssignableFrom(delayedNodeEvent.getNode().getArtifactClass()) && !disableStartup) {
-									restart(delayedNodeEvent, false);
-								}
-								else if (StartableArtifact.class.isAssignableFrom(delayedNodeEvent.getNode().getArtifactClass()) && !disableStartup) {
-									// don't recurse, on start we should be starting all the nodes
-									start(delayedNodeEvent, false, false);
-								}
-								if (TwoPhaseStartableArtifact.class.isAssignableFrom(delayedNodeEvent.getNode().getArtifactClass())) {
-									twoPhasers.add((TwoPhaseStartableArtifact) getNode(delayedNodeEvent).getArtifact());
-								}
-							}
-							catch (Throwable e) {
-								logger.error("Could not run delayed node event: " + delayedNodeEvent.getState() + " on " + delayedNodeEvent.getId(), e);
-							}
-						}
+						List<List<NodeEvent>> waves = orderNodes(repository, delayedNodeEvents);
 						boolean offline = isOffline();
-						// for two phase artifacts, we wait until everything is done before doing the final phase
-						// e.g. a http server should only go live once all the applications on it are loaded
-						for (TwoPhaseStartableArtifact twoPhaser : twoPhasers) {
-							try {
-								if (offline && twoPhaser instanceof TwoPhaseOfflineableArtifact) {
-									logger.info("Finalizing offline " + twoPhaser.getClass().getSimpleName() + ": " + twoPhaser.getId());
-									((TwoPhaseOfflineableArtifact) twoPhaser).offlineFinish();
-								}
-								else {
-									logger.info("Finalizing online " + twoPhaser.getClass().getSimpleName() + ": " + twoPhaser.getId());
-									twoPhaser.finish();
-								}
+						if (parallelStartup) {
+							startInParallel(waves, offline);
+						}
+						else {
+							List<TwoPhaseStartableArtifact> twoPhasers = new ArrayList<TwoPhaseStartableArtifact>();
+							for (NodeEvent delayedNodeEvent : delayedNodeEvents) {
+								processDelayed(delayedNodeEvent, twoPhasers);
 							}
-							catch (Throwable e) {
-								logger.error("Could not run second phase of artifact: " + twoPhaser.getId(), e);
+							// for two phase artifacts, we wait until everything is done before doing the final phase
+							// e.g. a http server should only go live once all the applications on it are loaded
+							for (TwoPhaseStartableArtifact twoPhaser : twoPhasers) {
+								finish(twoPhaser, offline);
 							}
 						}
 						if (isStarted) {
 							logger.info("Server artifacts reloaded in: " + ((new Date().getTime() - reloadTime.getTime()) / 1000) + "s");
+							reportStartup();
 						}
 						else {
 							logger.info("Server started in " + ((new Date().getTime() - startupTime.getTime()) / 1000) + "s");
@@ -788,7 +1382,16 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 					else {
 						isRepositoryLoading = true;
 						delayedNodeEvents.clear();
+						// the baseline is taken from the content as it is before we load it, anything that changes while loading is picked up by the next reloadChanged()
+						snapshotContentHashes();
 						reloadTime = new Date();
+						// the initial load is already being profiled from the server start
+						if (!profiler.isRecording()) {
+							profiler.begin(true);
+						}
+						// pick up any changed concurrency limits
+						bulkheads.reset();
+						BindingCache.clear();
 					}
 				}
 				return null;
@@ -796,25 +1399,455 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 		});
 	}
 
-	private void run(NodeEvent nodeEvent) {
-		try {
-			ComplexType inputDefinition = ((DefinedService) nodeEvent.getNode().getArtifact()).getServiceInterface().getInputDefinition();
-			ServiceRuntime runtime = new ServiceRuntime(
-				((DefinedService) getNode(nodeEvent).getArtifact()),
-				repository.newExecutionContext(SystemPrincipal.ROOT)
-			);
-			runtime.setAllowCaching(false);
-			runtime.run(inputDefinition.newInstance());
-		}
-		catch (IOException e) {
+	/**
+	 * Delays the event if the repository is loading or if it belongs to an incremental reload, it is processed once the (re)load is done
+	 */
+	private boolean delay(NodeEvent nodeEvent) {
+		if (isRepositoryLoading) {
+			delayedNodeEvents.add(nodeEvent);
+			return true;
+		}
+		else if (isIncremental(nodeEvent.getId())) {
+			incrementalEvents.add(nodeEvent);
+			return true;
+		}
+		return false;
+	}
+	
+	private boolean isIncremental(String id) {
+		Set<String> ids = incrementalIds;
+		if (ids != null && id != null) {
+			for (String incrementalId : ids) {
+				if (id.equals(incrementalId) || id.startsWith(incrementalId + ".") || id.startsWith(incrementalId + ":")) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Calculates the content hashes of the repository in the background, they form the baseline for the next reloadChanged()
+	 */
+	private void snapshotContentHashes() {
+		if (!(repository instanceof ResourceRepository)) {
+			return;
+		}
+		final long generation = contentHashGeneration.incrementAndGet();
+		contentHashes = null;
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Date started = new Date();
+					Map<String, String> hashes = RepositoryHashes.calculate(getRepositoryContainer());
+					if (setContentHashes(generation, hashes)) {
+						logger.debug("Calculated content hashes for " + hashes.size() + " artifacts in " + (new Date().getTime() - started.getTime()) + "ms");
+					}
+				}
+				catch (Exception e) {
+					logger.warn("Could not calculate content hashes, the next incremental reload will be a full reload", e);
+				}
+			}
+		});
+		thread.setName("repository-hasher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Only sets the hashes if no newer baseline has been started in the meantime
+	 */
+	private boolean setContentHashes(long generation, Map<String, String> hashes) {
+		synchronized(contentHashGeneration) {
+			if (contentHashGeneration.get() == generation) {
+				contentHashes = hashes;
+				return true;
+			}
+			return false;
+		}
+	}
+	
+	private ResourceContainer<?> getRepositoryContainer() {
+		return ((ResourceRepository) repository).getRoot().getContainer();
+	}
+	
+	/**
+	 * Compares the content of the repository with what was last loaded and only reloads the artifacts that actually changed
+	 * Artifacts that (transitively) depend on a changed artifact are restarted in dependency order, everything else is left alone
+	 * If we have nothing to compare against (e.g. the baseline is still being calculated), we fall back to a full reload
+	 */
+	public synchronized ReloadReport reloadChanged() throws IOException {
+		ReloadReport report = new ReloadReport();
+		report.setStarted(new Date());
+		ResourceContainer<?> root = getRepositoryContainer();
+		if (root instanceof CacheableResource) {
+			((CacheableResource) root).resetCache();
+		}
+		Map<String, String> previous = contentHashes;
+		if (previous == null) {
+			logger.warn("No content hashes available, doing a full reload");
+			report.setFull(true);
+			repository.reloadAll();
+			report.setStopped(new Date());
+			return report;
+		}
+		// the scan we compare with is also the next baseline, any background calculation that is still running is outdated
+		long generation = contentHashGeneration.incrementAndGet();
+		Map<String, String> current = RepositoryHashes.calculate(root);
+		List<String> changed = new ArrayList<String>();
+		List<String> added = new ArrayList<String>();
+		List<String> removed = new ArrayList<String>();
+		for (Map.Entry<String, String> entry : current.entrySet()) {
+			String hash = previous.get(entry.getKey());
+			if (hash == null) {
+				added.add(entry.getKey());
+			}
+			else if (!hash.equals(entry.getValue())) {
+				changed.add(entry.getKey());
+			}
+		}
+		for (String id : previous.keySet()) {
+			if (!current.containsKey(id)) {
+				removed.add(id);
+			}
+		}
+		// parents come before their children
+		Collections.sort(changed);
+		Collections.sort(added);
+		Collections.sort(removed);
+		report.setChanged(changed);
+		report.setAdded(added);
+		report.setRemoved(removed);
+		report.setRestarted(new ArrayList<String>());
+		
+		// the artifacts that depend on something that changed but did not change themselves
+		Set<String> dependents = new LinkedHashSet<String>();
+		List<String> todo = new ArrayList<String>(changed);
+		todo.addAll(removed);
+		while (!todo.isEmpty()) {
+			String id = todo.remove(todo.size() - 1);
+			List<String> dependencies = repository.getDependencies(id);
+			if (dependencies != null) {
+				for (String dependency : dependencies) {
+					if (!current.containsKey(dependency) || changed.contains(dependency) || added.contains(dependency)) {
+						continue;
+					}
+					if (dependents.add(dependency)) {
+						todo.add(dependency);
+					}
+				}
+			}
+		}
+		
+		if (changed.isEmpty() && added.isEmpty() && removed.isEmpty()) {
+			setContentHashes(generation, current);
+			logger.info("No changes detected in the repository");
+			report.setStopped(new Date());
+			return report;
+		}
+		logger.info("Reloading " + changed.size() + " changed, " + added.size() + " added and " + removed.size() + " removed artifacts, restarting " + dependents.size() + " dependent artifacts");
+		profiler.begin(true);
+		// delay the node events of the affected artifacts like we do for a full reload so we can start everything in the correct order afterwards
+		Set<String> scope = new HashSet<String>();
+		scope.addAll(changed);
+		scope.addAll(added);
+		scope.addAll(removed);
+		incrementalEvents.clear();
+		incrementalIds = scope;
+		try {
+			for (String id : removed) {
+				try {
+					repository.unload(id);
+				}
+				catch (Exception e) {
+					logger.error("Could not unload removed artifact: " + id, e);
+				}
+			}
+			for (String id : added) {
+				refreshClosestParent(id);
+			}
+			for (String id : removed) {
+				refreshClosestParent(id);
+			}
+			for (String id : changed) {
+				try {
+					// child artifacts have their own hash
+					repository.reload(id, false);
+				}
+				catch (Exception e) {
+					logger.error("Could not reload changed artifact: " + id, e);
+				}
+			}
+			for (String id : added) {
+				try {
+					repository.reload(id, false);
+				}
+				catch (Exception e) {
+					logger.error("Could not load added artifact: " + id, e);
+				}
+			}
+		}
+		finally {
+			incrementalIds = null;
+		}
+		List<String> items = new ArrayList<String>();
+		List<NodeEvent> events = new ArrayList<NodeEvent>();
+		synchronized(incrementalEvents) {
+			for (NodeEvent event : incrementalEvents) {
+				if (!items.contains(event.getId())) {
+					items.add(event.getId());
+					events.add(event);
+				}
+			}
+			incrementalEvents.clear();
+		}
+		boolean offline = isOffline();
+		List<List<NodeEvent>> waves = orderNodes(repository, events);
+		if (parallelStartup) {
+			startInParallel(waves, offline);
+		}
+		else {
+			List<TwoPhaseStartableArtifact> twoPhasers = new ArrayList<TwoPhaseStartableArtifact>();
+			for (NodeEvent event : events) {
+				processDelayed(event, twoPhasers);
+			}
+			for (TwoPhaseStartableArtifact twoPhaser : twoPhasers) {
+				finish(twoPhaser, offline);
+			}
+		}
+		for (NodeEvent event : events) {
+			report.getRestarted().add(event.getId());
+		}
+		
+		// restart the dependents, dependencies first, we don't recurse as the dependents of the dependents are in the set as well
+		if (!dependents.isEmpty() && !disableStartup) {
+			DependencyGraph graph = new DependencyGraph();
+			for (String id : dependents) {
+				graph.add(id, 0);
+			}
+			for (String id : dependents) {
+				Set<String> references = referenceIndex == null ? EAIRepositoryUtils.getAllReferences(repository, id) : referenceIndex.getAllReferences(repository, id);
+				if (references != null) {
+					for (String reference : references) {
+						if (dependents.contains(reference)) {
+							graph.addDependency(id, reference);
+						}
+					}
+				}
+			}
+			for (String id : graph.sort()) {
+				Artifact resolved = repository.resolve(id);
+				if (resolved instanceof RestartableArtifact && (!offline || !(resolved instanceof OfflineableArtifact))) {
+					restart((RestartableArtifact) resolved, false);
+					report.getRestarted().add(id);
+				}
+				else if (resolved instanceof StartableArtifact && resolved instanceof StoppableArtifact) {
+					stop((StoppableArtifact) resolved, false);
+					start((StartableArtifact) resolved, false, true);
+					report.getRestarted().add(id);
+				}
+			}
+		}
+		setContentHashes(generation, current);
+		reportStartup();
+		report.setStopped(new Date());
+		logger.info("Incremental reload done in " + (report.getStopped().getTime() - report.getStarted().getTime()) + "ms, restarted " + report.getRestarted().size() + " artifacts");
+		return report;
+	}
+	
+	/**
+	 * Refreshes the closest existing parent entry so new (or deleted) folders on the file system are picked up
+	 */
+	private void refreshClosestParent(String id) {
+		String parentId = id;
+		while (parentId.contains(".")) {
+			parentId = parentId.replaceAll("\\.[^.]+$", "");
+			Entry entry = repository.getEntry(parentId);
+			if (entry != null) {
+				entry.refresh(true);
+				return;
+			}
+		}
+		repository.getRoot().refresh(true);
+	}
+	
+	private void processDelayed(NodeEvent delayedNodeEvent, List<TwoPhaseStartableArtifact> twoPhasers) {
+		try {
+			if (DefinedService.class.isAssignableFrom(delayedNodeEvent.getNode().getArtifactClass()) && NodeUtils.isEager(delayedNodeEvent.getNode())) {
+				run(delayedNodeEvent);
+			}
+			else if (delayedNodeEvent.getState() == State.RELOAD && RestartableArtifact.class.isAssignableFrom(delayedNodeEvent.getNode().getArtifactClass()) && !disableStartup) {
+				restart(delayedNodeEvent, false);
+			}
+			else if (StartableArtifact.class.isAssignableFrom(delayedNodeEvent.getNode().getArtifactClass()) && !disableStartup) {
+				// don't recurse, on start we should be starting all the nodes
+				start(delayedNodeEvent, false, false);
+			}
+			if (TwoPhaseStartableArtifact.class.isAssignableFrom(delayedNodeEvent.getNode().getArtifactClass())) {
+				twoPhasers.add((TwoPhaseStartableArtifact) getNode(delayedNodeEvent).getArtifact());
+			}
+		}
+		catch (Throwable e) {
+			logger.error("Could not run delayed node event: " + delayedNodeEvent.getState() + " on " + delayedNodeEvent.getId(), e);
+		}
+	}
+	
+	private void finish(TwoPhaseStartableArtifact twoPhaser, boolean offline) {
+		StartupStep step = profiler.step(twoPhaser.getId(), "finish");
+		Throwable failure = null;
+		try {
+			if (offline && twoPhaser instanceof TwoPhaseOfflineableArtifact) {
+				logger.info("Finalizing offline " + twoPhaser.getClass().getSimpleName() + ": " + twoPhaser.getId());
+				((TwoPhaseOfflineableArtifact) twoPhaser).offlineFinish();
+			}
+			else {
+				logger.info("Finalizing online " + twoPhaser.getClass().getSimpleName() + ": " + twoPhaser.getId());
+				twoPhaser.finish();
+			}
+		}
+		catch (Throwable e) {
+			failure = e;
+			logger.error("Could not run second phase of artifact: " + twoPhaser.getId(), e);
+		}
+		finally {
+			profiler.done(step, failure);
+		}
+	}
+	
+	/**
+	 * Every wave is started concurrently on a bounded pool, the next wave only starts once the previous one is done (or timed out)
+	 * The second phase is done in the same waves once everything has started
+	 */
+	private void startInParallel(List<List<NodeEvent>> waves, final boolean offline) {
+		int threads = Math.max(1, startupThreads);
+		ThreadPoolExecutor startupPool = new ThreadPoolExecutor(threads, threads, 0l, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new RepositoryThreadFactory(repository));
+		try {
+			List<List<TwoPhaseStartableArtifact>> twoPhaseWaves = new ArrayList<List<TwoPhaseStartableArtifact>>();
+			for (List<NodeEvent> wave : waves) {
+				final List<TwoPhaseStartableArtifact> twoPhasers = Collections.synchronizedList(new ArrayList<TwoPhaseStartableArtifact>());
+				List<Runnable> tasks = new ArrayList<Runnable>();
+				List<String> ids = new ArrayList<String>();
+				for (final NodeEvent delayedNodeEvent : wave) {
+					tasks.add(new Runnable() {
+						@Override
+						public void run() {
+							processDelayed(delayedNodeEvent, twoPhasers);
+						}
+					});
+					ids.add(delayedNodeEvent.getId());
+				}
+				runWave(startupPool, tasks, ids, "start");
+				twoPhaseWaves.add(twoPhasers);
+			}
+			for (List<TwoPhaseStartableArtifact> twoPhasers : twoPhaseWaves) {
+				List<Runnable> tasks = new ArrayList<Runnable>();
+				List<String> ids = new ArrayList<String>();
+				for (final TwoPhaseStartableArtifact twoPhaser : twoPhasers) {
+					tasks.add(new Runnable() {
+						@Override
+						public void run() {
+							finish(twoPhaser, offline);
+						}
+					});
+					ids.add(twoPhaser.getId());
+				}
+				runWave(startupPool, tasks, ids, "finish");
+			}
+		}
+		catch (InterruptedException e) {
+			logger.error("Interrupted while starting artifacts, the remaining waves are not started");
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			startupPool.shutdown();
+		}
+	}
+	
+	/**
+	 * Runs the tasks concurrently and waits for all of them, each task gets the startup timeout from the moment it actually starts running
+	 * A task that times out is interrupted and its thread is replaced so the tasks queued behind it can still run
+	 * Tasks that never get to run are bound by the wave deadline: the time it would take if every thread used the full timeout for every task
+	 */
+	private void runWave(ThreadPoolExecutor startupPool, List<Runnable> tasks, List<String> ids, String action) throws InterruptedException {
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		final List<AtomicLong> started = new ArrayList<AtomicLong>();
+		long deadline = System.currentTimeMillis() + startupTimeout * ((tasks.size() + startupPool.getCorePoolSize() - 1) / Math.max(1, startupPool.getCorePoolSize()));
+		for (final Runnable task : tasks) {
+			final AtomicLong start = new AtomicLong();
+			started.add(start);
+			futures.add(startupPool.submit(new Runnable() {
+				@Override
+				public void run() {
+					start.set(System.currentTimeMillis());
+					task.run();
+				}
+			}));
+		}
+		for (int i = 0; i < futures.size(); i++) {
+			while (true) {
+				try {
+					futures.get(i).get(100, TimeUnit.MILLISECONDS);
+					break;
+				}
+				catch (TimeoutException e) {
+					long now = System.currentTimeMillis();
+					long start = started.get(i).get();
+					if (start > 0 && now - start > startupTimeout) {
+						logger.error("Artifact " + ids.get(i) + " did not " + action + " within " + startupTimeout + "ms, continuing without it");
+						profiler.timeout(ids.get(i), action, startupTimeout);
+						EAIRepositoryUtils.message(repository, ids.get(i), action, true, EAIRepositoryUtils.toValidation(new TimeoutException("Could not " + action + " within " + startupTimeout + "ms")));
+						// it may still complete, but it no longer occupies one of the startup slots
+						futures.get(i).cancel(true);
+						startupPool.setMaximumPoolSize(startupPool.getMaximumPoolSize() + 1);
+						startupPool.setCorePoolSize(startupPool.getCorePoolSize() + 1);
+						break;
+					}
+					else if (start == 0 && now > deadline) {
+						logger.error("Artifact " + ids.get(i) + " could not " + action + " before the wave deadline, skipping it");
+						EAIRepositoryUtils.message(repository, ids.get(i), action, true, EAIRepositoryUtils.toValidation(new TimeoutException("Could not " + action + " before the wave deadline")));
+						futures.get(i).cancel(false);
+						break;
+					}
+				}
+				catch (CancellationException e) {
+					break;
+				}
+				catch (ExecutionException e) {
+					logger.error("Could not " + action + ": " + ids.get(i), e.getCause());
+					break;
+				}
+			}
+		}
+	}
+	
+	private void run(NodeEvent nodeEvent) {
+		StartupStep step = profiler.step(nodeEvent.getId(), "run");
+		Exception failure = null;
+		try {
+			ComplexType inputDefinition = ((DefinedService) nodeEvent.getNode().getArtifact()).getServiceInterface().getInputDefinition();
+			ServiceRuntime runtime = new ServiceRuntime(
+				((DefinedService) getNode(nodeEvent).getArtifact()),
+				repository.newExecutionContext(SystemPrincipal.ROOT)
+			);
+			runtime.setAllowCaching(false);
+			runtime.run(inputDefinition.newInstance());
+		}
+		catch (IOException e) {
+			failure = e;
 			logger.error("Could not load eager service: " + nodeEvent.getId(), e);
 		}
 		catch (ParseException e) {
+			failure = e;
 			logger.error("Could not load eager service: " + nodeEvent.getId(), e);
 		}
 		catch (ServiceException e) {
+			failure = e;
 			logger.error("Could not run eager service: " + nodeEvent.getId(), e);
 		}
+		finally {
+			profiler.done(step, failure);
+		}
 	}
 	
 	private void restart(NodeEvent nodeEvent, boolean recursive) {
@@ -953,6 +1986,8 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 	
 	private void start(StartableArtifact artifact, boolean recursive, boolean finish) {
 		boolean offline = isOffline();
+		StartupStep step = profiler.step(artifact.getId(), "start");
+		Exception failure = null;
 		try {
 			if (shuttingDown) {
 				throw new RuntimeException("Can't start artifact: " + artifact.getId() + " during shutdown");
@@ -992,9 +2027,13 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 			EAIRepositoryUtils.message(repository, artifact.getId(), "start", true);
 		}
 		catch (Exception e) {
+			failure = e;
 			logger.error("Error while starting " + artifact.getClass().getSimpleName() + ": " + artifact.getId(), e);
 			EAIRepositoryUtils.message(repository, artifact.getId(), "start", true, EAIRepositoryUtils.toValidation(e));
 		}
+		finally {
+			profiler.done(step, failure);
+		}
 	}
 	
 	public void restart(String id) {
@@ -1025,6 +2064,8 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 	
 	private void restart(RestartableArtifact artifact, boolean recursive) {
 		logger.info("Restarting " + artifact.getClass().getSimpleName() + ": " + artifact.getId());
+		StartupStep step = profiler.step(artifact.getId(), "restart");
+		Exception failure = null;
 		try {
 			if (!(artifact instanceof StartableArtifact) || ((StartableArtifact) artifact).isStarted()) {
 				artifact.restart();
@@ -1052,9 +2093,13 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 			EAIRepositoryUtils.message(repository, artifact.getId(), "start", true);
 		}
 		catch (Exception e) {
+			failure = e;
 			logger.error("Error while restarting " + artifact.getClass().getSimpleName() + ": " + artifact.getId(), e);
 			EAIRepositoryUtils.message(repository, artifact.getId(), "start", true, EAIRepositoryUtils.toValidation(e));
 		}
+		finally {
+			profiler.done(step, failure);
+		}
 	}
 	
 	private void stop(StoppableArtifact artifact, boolean recursive) {
@@ -1096,14 +2141,87 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 	@Override
 	public Future<ServiceResult> run(Service service, ExecutionContext executionContext, ComplexContent input, ServiceRunnableObserver...observers) {
 		List<ServiceRunnableObserver> allObservers = new ArrayList<ServiceRunnableObserver>(observers.length + 1);
-		allObservers.add(new RunningServiceObserver());
+		allObservers.add(new RunningServiceObserver(service, executionContext));
 		allObservers.addAll(Arrays.asList(observers));
 		ServiceRuntime serviceRuntime = new ServiceRuntime(service, executionContext);
 		final ServiceRunnable runnable = new ServiceRunnable(serviceRuntime, input, allObservers.toArray(new ServiceRunnableObserver[allObservers.size()]));
-		// in the future could actually run this async in a thread pool but for now it is assumed that all originating systems have their own thread pool
+		// by default it is assumed that all originating systems have their own thread pool
 		// for example the messaging system runs in its own thread pool, as does the http server etc
-		// if we were going for a centralized thread pool those systems should use the central one as well but then might start to interfere with one another
-		return new ServiceResultFuture(runnable.call());
+		// in async mode we hand off to the central pool so the caller can fan out multiple invocations
+		// if we are already running inside the pool, we run inline: blocking a pool thread on another pool thread can starve a fixed pool
+		if (async && pool != null && !Boolean.TRUE.equals(poolThread.get())) {
+			final AsyncServiceResultFuture future = new AsyncServiceResultFuture();
+			try {
+				future.setFuture(submit(new Runnable() {
+					public void run() {
+						// it may have been cancelled while it was queued
+						if (future.isDone()) {
+							return;
+						}
+						try {
+							future.complete(call(service, runnable));
+						}
+						catch (Throwable e) {
+							future.completeExceptionally(e);
+						}
+					}
+				}));
+			}
+			// if the pool is saturated and configured to fail fast, we send back the exception as a result
+			catch (RejectedExecutionException e) {
+				return new ServiceResultFuture(new SimpleServiceResult(null, e.getCause() instanceof ServiceException ? (ServiceException) e.getCause() : new ServiceException(ServicePool.REJECTED_CODE, e.getMessage(), e)));
+			}
+			return future;
+		}
+		return new ServiceResultFuture(call(service, runnable));
+	}
+	
+	/**
+	 * Runs the service within the concurrency limits that apply to it
+	 */
+	private ServiceResult call(Service service, ServiceRunnable runnable) {
+		if (!(service instanceof DefinedService)) {
+			return runnable.call();
+		}
+		List<ServiceBulkheads.Bulkhead> acquired;
+		try {
+			acquired = bulkheads.acquire(((DefinedService) service).getId());
+		}
+		catch (ServiceException e) {
+			return new SimpleServiceResult(null, e);
+		}
+		try {
+			return runnable.call();
+		}
+		finally {
+			bulkheads.release(acquired);
+		}
+	}
+	
+	/**
+	 * A future that is completed by the server pool, cancelling it will also cancel (and optionally interrupt) the pooled execution
+	 */
+	public static class AsyncServiceResultFuture extends CompletableFuture<ServiceResult> {
+		
+		private volatile Future<?> future;
+		
+		void setFuture(Future<?> future) {
+			this.future = future;
+			// if we were cancelled before the submission returned, propagate it
+			if (isCancelled()) {
+				future.cancel(true);
+			}
+		}
+		
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			Future<?> future = this.future;
+			if (cancelled && future != null) {
+				future.cancel(mayInterruptIfRunning);
+			}
+			return cancelled;
+		}
 	}
 	
 	public static class ServiceResultFuture implements Future<ServiceResult> {
@@ -1137,17 +2255,28 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 	}
 
 	private class RunningServiceObserver implements ServiceRunnableObserver {
+		private Service service;
+		private ExecutionContext executionContext;
+		private RunningServiceRegistry.RunningService running;
+		
+		public RunningServiceObserver(Service service, ExecutionContext executionContext) {
+			this.service = service;
+			this.executionContext = executionContext;
+		}
 		@Override
 		public void stop(ServiceRunnable serviceRunnable) {
-			synchronized(runningServices) {
-				runningServices.remove(serviceRunnable);
+			if (running != null) {
+				runningServices.unregister(running);
+				running = null;
 			}
 		}
 		@Override
 		public void start(ServiceRunnable serviceRunnable) {
-			synchronized(runningServices) {
-				runningServices.add(serviceRunnable);
-			}
+			Token token = executionContext == null || executionContext.getSecurityContext() == null ? null : executionContext.getSecurityContext().getToken();
+			running = runningServices.register(
+				service instanceof DefinedService ? ((DefinedService) service).getId() : "$anonymous",
+				token == null ? null : token.getName() + (token.getRealm() == null ? "" : "@" + token.getRealm())
+			);
 		}
 	}
 	
@@ -1274,6 +2403,9 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 //		addShutdownHook();
 		
 		startupTime = new Date();
+		profiler.begin(false);
+		referenceIndex = new ReferenceIndex(getReferenceIndexFile());
+		referenceIndex.load();
 		Thread.currentThread().setContextClassLoader(repository.getClassLoader());
 		repository.start();
 		
@@ -1282,7 +2414,7 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 		for (ServerListener serverListener : serverListeners) {
 			logger.debug("Starting HTTP listener: " + serverListener);
 			if (serverListener.getPhase() == Phase.ARTIFACTS_STARTED) {
-				serverListener.listen(Server.this, getHTTPServer());
+				listen(serverListener);
 			}
 		}
 		
@@ -1290,6 +2422,70 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 			logger.info("Running the final started listener");
 			startedListener.run();
 		}
+		reportStartup();
+	}
+	
+	private void listen(ServerListener serverListener) {
+		StartupStep step = profiler.step(serverListener.getClass().getName(), "listen");
+		RuntimeException failure = null;
+		try {
+			serverListener.listen(Server.this, getHTTPServer());
+		}
+		catch (RuntimeException e) {
+			failure = e;
+			throw e;
+		}
+		finally {
+			profiler.done(step, failure);
+		}
+	}
+	
+	/**
+	 * Stop profiling the (re)start and send out the report
+	 */
+	private void reportStartup() {
+		if (!profiler.isRecording()) {
+			return;
+		}
+		StartupReport report = profiler.end();
+		ComplexEventImpl event = new ComplexEventImpl();
+		event.setEventName(report.isReload() ? "server-reload-profile" : "server-startup-profile");
+		event.setEventCategory("server-instance");
+		event.setSeverity(EventSeverity.INFO);
+		event.setCreated(new Date());
+		event.setStarted(report.getStarted());
+		event.setStopped(report.getStopped());
+		event.setDuration(report.getStopped().getTime() - report.getStarted().getTime());
+		event.setTimezone(TimeZone.getDefault());
+		event.setMessage("Critical path (" + report.getCriticalPathDuration() + "ms): " + String.join(" > ", report.getCriticalPath()));
+		repository.getComplexEventDispatcher().fire(event, this);
+	}
+	
+	/**
+	 * For a file based repository, the index is stored next to it, otherwise it is stored in the user home like the runtime properties
+	 */
+	private File getReferenceIndexFile() {
+		try {
+			URI root = getRepositoryRoot();
+			if (root != null && "file".equals(root.getScheme())) {
+				File directory = new File(root);
+				if (directory.getParentFile() != null) {
+					return new File(directory.getParentFile(), "." + directory.getName() + ".references");
+				}
+			}
+		}
+		catch (Exception e) {
+			logger.debug("Could not determine repository root for the reference index", e);
+		}
+		String property = System.getProperty("user.home");
+		File target = property == null ? new File(".") : new File(property);
+		File hidden = new File(target, ".nabu");
+		hidden.mkdirs();
+		return new File(hidden, (getName() == null ? "repository" : getName()) + ".references");
+	}
+	
+	public StartupProfiler getProfiler() {
+		return profiler;
 	}
 
 	public void addShutdownHook() {
@@ -1298,43 +2494,11 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 				// only execute if we actually started the server
 				if (startupTime != null) {
 					logger.info("Shutting down server");
-					shuttingDown = true;
-					List<StoppableArtifact> artifacts = repository.getArtifacts(StoppableArtifact.class);
-					// we want to reverse sort them, if they had to start late, they have to be shut down first
-					artifacts.sort(new Comparator<StoppableArtifact>() {
-						@Override
-						public int compare(StoppableArtifact o1, StoppableArtifact o2) {
-							StartPhase phase1 = o1 instanceof StartableArtifact ? ((StartableArtifact) o1).getPhase() : StartPhase.NORMAL;
-							StartPhase phase2 = o2 instanceof StartableArtifact ? ((StartableArtifact) o2).getPhase() : StartPhase.NORMAL;
-							return phase2.ordinal() - phase1.ordinal();
-						}
-					});
-					// first do an initial pass of all the artifacts that can can be halted before being stopped
-					for (StoppableArtifact artifact : artifacts) {
-						if (!(artifact instanceof StartableArtifact) || ((StartableArtifact) artifact).isStarted()) {
-							if (artifact instanceof TwoPhaseStoppableArtifact) {
-								logger.info("Halting " + artifact.getId());
-								try {
-									((TwoPhaseStoppableArtifact) artifact).halt();
-								}
-								catch (Exception e) {
-									logger.error("Failed to halt " + artifact.getId(), e);
-								}
-							}
-						}
-					}
-					for (StoppableArtifact artifact : artifacts) {
-						// if it is either not startable or running, stop it
-						if (!(artifact instanceof StartableArtifact) || ((StartableArtifact) artifact).isStarted()) {
-							logger.info("Stopping " + artifact.getId());
-							try {
-								artifact.stop();
-							}
-							catch (Exception e) {
-								logger.error("Failed to shut down " + artifact.getId(), e);
-							}
-						}
+					if (drainOnShutdown) {
+						drain(drainTimeout);
 					}
+					shuttingDown = true;
+					stopArtifacts();
 				}
 				// now the server is wound down correctly, run any remaining shutdown actions
 				for (Runnable shutdownAction : shutdownActions) {
@@ -1351,107 +2515,262 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 		Runtime.getRuntime().addShutdownHook(hook);
 	}
 	
-	public URI getRepositoryRoot() {
-		return ResourceUtils.getURI(((ResourceRepository) repository).getRoot().getContainer());
+	/**
+	 * Stops taking on new work (cluster queues and broadcasts) and waits until all the running services and the pool are done or the timeout expires
+	 * Once draining, the server is no longer ready, this can not be undone without a restart
+	 * Returns true if everything finished in time
+	 */
+	public boolean drain(long timeout) {
+		synchronized(this) {
+			if (!draining) {
+				logger.info("Draining server");
+				draining = true;
+				fireDrainEvent("server-draining", EventSeverity.INFO, "Draining server, " + getInFlight() + " services in flight");
+				// the consumers notice the flag the next time their poll for a task returns
+			}
+		}
+		long started = System.currentTimeMillis();
+		long lastReport = started;
+		int inFlight;
+		while ((inFlight = getInFlight()) > 0) {
+			long now = System.currentTimeMillis();
+			if (now - started >= timeout) {
+				logger.warn("Drain timeout of " + timeout + "ms exceeded with " + inFlight + " services still in flight");
+				fireDrainEvent("server-drain-timeout", EventSeverity.WARNING, "Could not drain server within " + timeout + "ms, " + inFlight + " services still in flight");
+				return false;
+			}
+			if (now - lastReport >= 5000) {
+				lastReport = now;
+				fireDrainEvent("server-draining", EventSeverity.INFO, "Draining server, " + inFlight + " services in flight");
+			}
+			try {
+				Thread.sleep(100);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		logger.info("Server drained in " + (System.currentTimeMillis() - started) + "ms");
+		fireDrainEvent("server-drained", EventSeverity.INFO, "Server drained in " + (System.currentTimeMillis() - started) + "ms");
+		return true;
+	}
+	
+	/**
+	 * The services that are running or waiting in the pool
+	 */
+	private int getInFlight() {
+		int inFlight = runningServices.getRunningCount();
+		if (pool instanceof ThreadPoolExecutor) {
+			inFlight += ((ThreadPoolExecutor) pool).getQueue().size();
+		}
+		return inFlight;
+	}
+	
+	private void fireDrainEvent(String name, EventSeverity severity, String message) {
+		ComplexEventImpl event = new ComplexEventImpl();
+		event.setEventName(name);
+		event.setEventCategory("server-instance");
+		event.setSeverity(severity);
+		event.setCreated(new Date());
+		event.setTimezone(TimeZone.getDefault());
+		event.setMessage(message);
+		repository.getComplexEventDispatcher().fire(event, this);
+	}
+	
+	public boolean isDraining() {
+		return draining;
 	}
 	
 	/**
-	 * TODO: Only checks direct references atm, not recursive ones
+	 * Whether the server is started and willing to take on new work
 	 */
-	@SuppressWarnings("unused")
-	private void orderNodes(final Repository repository, List<NodeEvent> events) {
-		Comparator<NodeEvent> comparator = new Comparator<NodeEvent>() {
+	public boolean isReady() {
+		return isStarted && !draining && !shuttingDown;
+	}
+	
+	/**
+	 * Stops the artifacts in reverse phase order, if they had to start late, they have to be shut down first
+	 * Everything that can be halted is halted first, then the artifacts are stopped, within a phase this happens concurrently, each artifact gets the artifact timeout but the whole sequence must finish within the shutdown timeout
+	 * Artifacts that do not stop in time are reported with the stack of the thread that was stopping them, we don't wait for them
+	 */
+	private void stopArtifacts() {
+		long deadline = System.currentTimeMillis() + shutdownTimeout;
+		Map<StartPhase, List<StoppableArtifact>> phases = new TreeMap<StartPhase, List<StoppableArtifact>>(Collections.reverseOrder());
+		for (StoppableArtifact artifact : repository.getArtifacts(StoppableArtifact.class)) {
+			// if it is either not startable or running, stop it
+			if (!(artifact instanceof StartableArtifact) || ((StartableArtifact) artifact).isStarted()) {
+				StartPhase phase = artifact instanceof StartableArtifact ? ((StartableArtifact) artifact).getPhase() : StartPhase.NORMAL;
+				if (!phases.containsKey(phase)) {
+					phases.put(phase, new ArrayList<StoppableArtifact>());
+				}
+				phases.get(phase).add(artifact);
+			}
+		}
+		// daemon threads so an artifact that hangs can not keep the jvm alive
+		// every artifact gets its own thread so a hung artifact only costs its own slot and never delays the others
+		ExecutorService shutdownPool = Executors.newCachedThreadPool(new ThreadFactory() {
+			private AtomicLong counter = new AtomicLong();
 			@Override
-			public int compare(NodeEvent o1, NodeEvent o2) {
-//				List<String> references = repository.getReferences(o1.getId());
-//				if (references != null && references.contains(o2.getId())) {
-//					return 1;
-//				}
-//				references = repository.getReferences(o2.getId());
-//				if (references != null && references.contains(o1.getId())) {
-//					return -1;
-//				}
-//				return 0;
-				System.out.println("Checking: " + o1.getId() + " vs " + o2.getId());
-				if (isInReferences(repository, o1.getId(), o2.getId(), new ArrayList<String>())) {
-					System.out.println("\t1");
-					return 1;
-				}
-				else if (isInReferences(repository, o2.getId(), o1.getId(), new ArrayList<String>())) {
-					System.out.println("\t-1");
-					return -1;
-				}
-				System.out.println("\t0");
-				return 0;
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable);
+				thread.setName("nabu-shutdown-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				thread.setContextClassLoader(repository.getClassLoader());
+				return thread;
 			}
-		};
-		Map<String, Set<String>> allReferences = new HashMap<String, Set<String>>();
-		for (int i = 0; i < events.size(); i++) {
-			allReferences.put(events.get(i).getId(), EAIRepositoryUtils.getAllReferences(repository, events.get(i).getId()));
-		}
-		Set<String> warnings = new HashSet<String>();
-		boolean changed = true;
-		sorting: while(changed) {
-			changed = false;
-			for (int i = 0; i < events.size(); i++) {
-				for (int j = 0; j < events.size(); j++) {
-					if (i == j) {
-						continue;
+		});
+		try {
+			// first do a pass over all the artifacts that can be halted so they stop accepting new work
+			for (List<StoppableArtifact> artifacts : phases.values()) {
+				List<StoppableArtifact> halting = new ArrayList<StoppableArtifact>();
+				for (StoppableArtifact artifact : artifacts) {
+					if (artifact instanceof TwoPhaseStoppableArtifact) {
+						halting.add(artifact);
 					}
-					// if i is before j but requires it in references, try to switch 
-					boolean iDependsOnJ = allReferences.get(events.get(i).getId()).contains(events.get(j).getId());
-					boolean jDependsOnI = allReferences.get(events.get(j).getId()).contains(events.get(i).getId());
-					
-					StartPhase iPhase = StartPhase.NORMAL, jPhase = StartPhase.NORMAL;
-					// check for stages for startup
-					if (!iDependsOnJ && !jDependsOnI) {
-						Artifact iResolve = repository.resolve(events.get(i).getId());
-						Artifact jResolve = repository.resolve(events.get(j).getId());
-						
-						if (iResolve instanceof StartableArtifact && jResolve instanceof StartableArtifact) {
-							iPhase = ((StartableArtifact) iResolve).getPhase();
-							jPhase = ((StartableArtifact) jResolve).getPhase();
+				}
+				stopWave(shutdownPool, halting, true, deadline);
+			}
+			for (Map.Entry<StartPhase, List<StoppableArtifact>> phase : phases.entrySet()) {
+				logger.info("Stopping " + phase.getValue().size() + " artifacts in phase " + phase.getKey());
+				stopWave(shutdownPool, phase.getValue(), false, deadline);
+			}
+		}
+		finally {
+			shutdownPool.shutdownNow();
+		}
+	}
+	
+	private void stopWave(ExecutorService shutdownPool, List<StoppableArtifact> artifacts, final boolean halt, long deadline) {
+		final String action = halt ? "halt" : "stop";
+		if (System.currentTimeMillis() >= deadline) {
+			for (StoppableArtifact artifact : artifacts) {
+				logger.error("Shutdown timeout of " + shutdownTimeout + "ms exceeded, can not " + action + ": " + artifact.getId());
+			}
+			return;
+		}
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		final List<AtomicLong> started = new ArrayList<AtomicLong>();
+		final List<Thread> threads = new ArrayList<Thread>();
+		for (final StoppableArtifact artifact : artifacts) {
+			final int index = threads.size();
+			// the cached pool hands out a thread immediately, so the clock starts at submission
+			started.add(new AtomicLong(System.currentTimeMillis()));
+			threads.add(null);
+			futures.add(shutdownPool.submit(new Runnable() {
+				@Override
+				public void run() {
+					synchronized(threads) {
+						threads.set(index, Thread.currentThread());
+					}
+					try {
+						if (halt) {
+							logger.info("Halting " + artifact.getId());
+							((TwoPhaseStoppableArtifact) artifact).halt();
+						}
+						else {
+							logger.info("Stopping " + artifact.getId());
+							artifact.stop();
 						}
 					}
-					
-					if (jDependsOnI && iDependsOnJ) {
-						// to have each warning only once, not once in each direction
-						int comparison = events.get(i).getId().compareTo(events.get(j).getId());
-						warnings.add("Found circular reference between: " + events.get(comparison < 0 ? i : j) + " and " + events.get(comparison < 0 ? j : i));
+					catch (Exception e) {
+						logger.error("Failed to " + action + " " + artifact.getId(), e);
 					}
-					else if ((iDependsOnJ && i < j) || (jDependsOnI && j < i) || (i < j && iPhase.ordinal() > jPhase.ordinal()) || (i > j && jPhase.ordinal() > iPhase.ordinal())) {
-						NodeEvent nodeEvent = events.get(i);
-						events.set(i, events.get(j));
-						events.set(j, nodeEvent);
-						changed = true;
-						continue sorting;
+				}
+			}));
+		}
+		for (int i = 0; i < futures.size(); i++) {
+			while (true) {
+				try {
+					futures.get(i).get(100, TimeUnit.MILLISECONDS);
+					break;
+				}
+				catch (TimeoutException e) {
+					long now = System.currentTimeMillis();
+					long start = started.get(i).get();
+					if (now >= deadline || now - start > shutdownArtifactTimeout) {
+						Thread thread;
+						synchronized(threads) {
+							thread = threads.get(i);
+						}
+						StringBuilder dump = new StringBuilder();
+						if (thread != null) {
+							dump.append("\"").append(thread.getName()).append("\" ").append(thread.getState());
+							for (StackTraceElement element : thread.getStackTrace()) {
+								dump.append("\n\tat ").append(element);
+							}
+						}
+						logger.error("Artifact " + artifacts.get(i).getId() + " did not " + action + " in time, continuing without it" + (thread == null ? "" : ":\n" + dump));
+						futures.get(i).cancel(true);
+						break;
 					}
 				}
+				catch (ExecutionException e) {
+					logger.error("Failed to " + action + " " + artifacts.get(i).getId(), e.getCause());
+					break;
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
 			}
 		}
-		for (String warning : warnings) {
-			logger.warn(warning);
-		}
-//		Collections.sort(events, comparator);
 	}
 	
-	private static boolean isInReferences(Repository repository, String startingNode, String searchNode, List<String> searchedNodes) {
-		searchedNodes.add(startingNode);
-		List<String> references = repository.getReferences(startingNode);
-		if (references.contains(searchNode)) {
-			return true;
-		}
-		else {
-			for (String reference : references) {
-				if (!searchedNodes.contains(reference)) {
-					boolean inReferences = isInReferences(repository, reference, searchNode, searchedNodes);
-					if (inReferences) {
-						return true;
+	public URI getRepositoryRoot() {
+		return ResourceUtils.getURI(((ResourceRepository) repository).getRoot().getContainer());
+	}
+	
+	/**
+	 * Sorts the events so artifacts come after everything they (transitively) depend on, independent artifacts are ordered by their start phase
+	 * The returned waves contain the same events grouped so each wave only depends on the ones before it
+	 */
+	private List<List<NodeEvent>> orderNodes(final Repository repository, List<NodeEvent> events) {
+		if (referenceIndex != null) {
+			referenceIndex.validate(repository);
+		}
+		DependencyGraph graph = new DependencyGraph();
+		Map<String, NodeEvent> eventsById = new HashMap<String, NodeEvent>();
+		for (NodeEvent event : events) {
+			eventsById.put(event.getId(), event);
+			StartPhase phase = StartPhase.NORMAL;
+			// only resolve what can actually have a phase
+			if (event.getNode() != null && StartableArtifact.class.isAssignableFrom(event.getNode().getArtifactClass())) {
+				Artifact artifact = repository.resolve(event.getId());
+				if (artifact instanceof StartableArtifact) {
+					phase = ((StartableArtifact) artifact).getPhase();
+				}
+			}
+			graph.add(event.getId(), phase.ordinal());
+		}
+		for (NodeEvent event : events) {
+			Set<String> references = referenceIndex == null ? EAIRepositoryUtils.getAllReferences(repository, event.getId()) : referenceIndex.getAllReferences(repository, event.getId());
+			if (references != null) {
+				for (String reference : references) {
+					if (eventsById.containsKey(reference)) {
+						graph.addDependency(event.getId(), reference);
 					}
 				}
 			}
 		}
-		return false;
+		profiler.setGraph(graph);
+		if (referenceIndex != null) {
+			referenceIndex.save();
+		}
+		for (List<String> cycle : graph.getCycles()) {
+			logger.warn("Found circular reference between: " + cycle);
+		}
+		List<List<NodeEvent>> waves = new ArrayList<List<NodeEvent>>();
+		events.clear();
+		for (List<String> ids : graph.getWaves()) {
+			List<NodeEvent> wave = new ArrayList<NodeEvent>(ids.size());
+			for (String id : ids) {
+				wave.add(eventsById.get(id));
+			}
+			events.addAll(wave);
+			waves.add(wave);
+		}
+		return waves;
 	}
 
 	public boolean isEnabledRepositorySharing() {
@@ -1536,27 +2855,57 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 	@Override
 	public void runAnywhere(Service service, ExecutionContext context, ComplexContent input, String target) {
 		ServiceExecutionTask task = toTask(service, input, target);
+		// targeted work goes to the queue of that target so only eligible members compete for it
+		String queue = getExecutionQueue(target);
+		if (Routing.LEAST_LOADED.equals(clusterRouting)) {
+			MemberState member = getLeastLoadedMember(target);
+			// if we have no recent heartbeats, we fall back to the shared queue
+			if (member != null) {
+				member.routed();
+				queue = getExecutionQueue(member.getName());
+			}
+		}
 		try {
-			cluster.queue("server.execute").put(task);
+			cluster.queue(queue).put(task);
 		}
 		catch (InterruptedException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	/**
+	 * Runs the service on the member that owns the partition of the key, so access to data partitioned with the same key is local
+	 * If the owner is not known (e.g. while partitions are migrating), any member can pick it up
+	 */
+	public void runByKey(Service service, ExecutionContext context, ComplexContent input, Object key) {
+		String owner = getLiveOwner(key);
+		// we own it, no need to go through the cluster
+		if (owner != null && owner.equals(getName())) {
+			runInPool(service, context, input);
+			return;
+		}
+		ServiceExecutionTask task = toTask(service, input, null);
+		task.setPartitionKey(key);
+		try {
+			cluster.queue(getExecutionQueue(owner)).put(task);
+		}
+		catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
 	private ServiceExecutionTask toTask(Service service, ComplexContent input, String target) {
 		ServiceExecutionTask task = new ServiceExecutionTask();
+		task.setTaskId(UUID.randomUUID().toString().replace("-", ""));
+		task.setEnqueued(System.currentTimeMillis());
 		task.setServiceId(((DefinedService) service).getId());
 		if (input != null) {
-			XMLBinding binding = new XMLBinding(service.getServiceInterface().getInputDefinition(), Charset.forName("UTF-8"));
-			ByteArrayOutputStream output = new ByteArrayOutputStream();
 			try {
-				binding.marshal(output, input);
+				task.setInput(executionCodec.encode(input));
 			}
 			catch (IOException e) {
 				throw new RuntimeException(e);
 			}
-			task.setInput(new String(output.toByteArray(), Charset.forName("UTF-8")));
 		}
 		task.setTarget(target);
 		return task;
@@ -1568,11 +2917,253 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 		cluster.topic("server.execute").publish(task);
 	}
 
+	/**
+	 * Runs the service on all the (targeted) members and gathers the results
+	 * The future expires after the timeout, use collect() on it to get partial results if some members are slow
+	 */
+	public BatchResultFuture runEverywhere(Service service, ExecutionContext context, ComplexContent input, String target, long timeout) {
+		evictFutures();
+		ServiceExecutionTask task = toTask(service, input, target);
+		String runId = UUID.randomUUID().toString().replace("-", "");
+		task.setRunId(runId);
+		task.setReplyTo(getName());
+		BatchResultFuture future = new BatchResultFuture(runId, getExpectedMembers(target), System.currentTimeMillis() + timeout);
+		futures.put(runId, future);
+		cluster.topic("server.execute").publish(task);
+		return future;
+	}
+	
 	public ExecutorService getPool() {
 		return pool;
 	}
 	public void setPool(ExecutorService pool) {
 		this.pool = pool;
+		if (pool instanceof ServicePool) {
+			final ServicePool servicePool = (ServicePool) pool;
+			setGauge("pool.queue", new MetricGauge() {
+				@Override
+				public long getValue() {
+					return servicePool.getQueueDepth();
+				}
+			});
+			setGauge("pool.active", new MetricGauge() {
+				@Override
+				public long getValue() {
+					return servicePool.getActiveCount();
+				}
+			});
+			setGauge("pool.completed", new MetricGauge() {
+				@Override
+				public long getValue() {
+					return servicePool.getCompletedTaskCount();
+				}
+			});
+			setGauge("pool.rejected", new MetricGauge() {
+				@Override
+				public long getValue() {
+					return servicePool.getRejectedCount();
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Whether or not the local pool can take on additional work without queueing it beyond its limits
+	 */
+	public boolean isPoolSaturated() {
+		return pool instanceof ServicePool && ((ServicePool) pool).isSaturated();
+	}
+
+	public RunningServiceRegistry getRunningServices() {
+		return runningServices;
+	}
+	
+	public ServiceBulkheads getBulkheads() {
+		return bulkheads;
+	}
+
+	public ServiceExecutionCodec getExecutionCodec() {
+		return executionCodec;
+	}
+	public void setExecutionCodec(ServiceExecutionCodec executionCodec) {
+		this.executionCodec = executionCodec;
+	}
+
+	public int getClusterConsumers() {
+		return clusterConsumers;
+	}
+	public void setClusterConsumers(int clusterConsumers) {
+		this.clusterConsumers = clusterConsumers;
+	}
+
+	public int getClusterBatchSize() {
+		return clusterBatchSize;
+	}
+	public void setClusterBatchSize(int clusterBatchSize) {
+		this.clusterBatchSize = clusterBatchSize;
+	}
+
+	public long getClusterParkedTaskTtl() {
+		return clusterParkedTaskTtl;
+	}
+	public void setClusterParkedTaskTtl(long clusterParkedTaskTtl) {
+		this.clusterParkedTaskTtl = clusterParkedTaskTtl;
+	}
+
+	public int getClusterQueueAllowance() {
+		return clusterQueueAllowance;
+	}
+	public void setClusterQueueAllowance(int clusterQueueAllowance) {
+		this.clusterQueueAllowance = clusterQueueAllowance;
+	}
+
+	public boolean isParallelStartup() {
+		return parallelStartup;
+	}
+	public void setParallelStartup(boolean parallelStartup) {
+		this.parallelStartup = parallelStartup;
+	}
+
+	public int getStartupThreads() {
+		return startupThreads;
+	}
+	public void setStartupThreads(int startupThreads) {
+		this.startupThreads = startupThreads;
+	}
+
+	public long getStartupTimeout() {
+		return startupTimeout;
+	}
+	public void setStartupTimeout(long startupTimeout) {
+		this.startupTimeout = startupTimeout;
+	}
+
+	public ResponseStreamer getResponseStreamer() {
+		return responseStreamer;
+	}
+	public void setResponseStreamer(ResponseStreamer responseStreamer) {
+		this.responseStreamer = responseStreamer;
+	}
+
+	public AsyncCallbacks getAsyncCallbacks() {
+		return asyncCallbacks;
+	}
+	public void setAsyncCallbacks(AsyncCallbacks asyncCallbacks) {
+		this.asyncCallbacks = asyncCallbacks;
+	}
+
+	public AsyncExecutions getAsyncExecutions() {
+		return asyncExecutions;
+	}
+	public void setAsyncExecutions(AsyncExecutions asyncExecutions) {
+		this.asyncExecutions = asyncExecutions;
+		setGauge("async.executions", new MetricGauge() {
+			@Override
+			public long getValue() {
+				return Server.this.asyncExecutions.getCount();
+			}
+		});
+		setGauge("async.size", new MetricGauge() {
+			@Override
+			public long getValue() {
+				return Server.this.asyncExecutions.getSize();
+			}
+		});
+	}
+
+	public int getBatchMaxItems() {
+		return batchMaxItems;
+	}
+	public void setBatchMaxItems(int batchMaxItems) {
+		this.batchMaxItems = batchMaxItems;
+	}
+
+	public long getBatchItemTimeout() {
+		return batchItemTimeout;
+	}
+	public void setBatchItemTimeout(long batchItemTimeout) {
+		this.batchItemTimeout = batchItemTimeout;
+	}
+
+	public int getBatchParallelism() {
+		return batchParallelism;
+	}
+	public void setBatchParallelism(int batchParallelism) {
+		this.batchParallelism = batchParallelism;
+	}
+
+	public boolean isStreamInvokeOutput() {
+		return streamInvokeOutput;
+	}
+	public void setStreamInvokeOutput(boolean streamInvokeOutput) {
+		this.streamInvokeOutput = streamInvokeOutput;
+	}
+
+	public long getDrainTimeout() {
+		return drainTimeout;
+	}
+	public void setDrainTimeout(long drainTimeout) {
+		this.drainTimeout = drainTimeout;
+	}
+
+	public boolean isDrainOnShutdown() {
+		return drainOnShutdown;
+	}
+	public void setDrainOnShutdown(boolean drainOnShutdown) {
+		this.drainOnShutdown = drainOnShutdown;
+	}
+
+	public long getShutdownTimeout() {
+		return shutdownTimeout;
+	}
+	public void setShutdownTimeout(long shutdownTimeout) {
+		this.shutdownTimeout = shutdownTimeout;
+	}
+
+	public long getShutdownArtifactTimeout() {
+		return shutdownArtifactTimeout;
+	}
+	public void setShutdownArtifactTimeout(long shutdownArtifactTimeout) {
+		this.shutdownArtifactTimeout = shutdownArtifactTimeout;
+	}
+
+	public ServiceExecutionLeases getExecutionLeases() {
+		return executionLeases;
+	}
+	public void setExecutionLeases(ServiceExecutionLeases executionLeases) {
+		this.executionLeases = executionLeases;
+	}
+	
+	public boolean isShuttingDown() {
+		return shuttingDown;
+	}
+
+	public PartitionResolver getPartitionResolver() {
+		return partitionResolver;
+	}
+	public void setPartitionResolver(PartitionResolver partitionResolver) {
+		this.partitionResolver = partitionResolver;
+	}
+
+	public Routing getClusterRouting() {
+		return clusterRouting;
+	}
+	public void setClusterRouting(Routing clusterRouting) {
+		this.clusterRouting = clusterRouting;
+	}
+
+	public int getClusterResultReferenceThreshold() {
+		return clusterResultReferenceThreshold;
+	}
+	public void setClusterResultReferenceThreshold(int clusterResultReferenceThreshold) {
+		this.clusterResultReferenceThreshold = clusterResultReferenceThreshold;
+	}
+
+	public boolean isAsync() {
+		return async;
+	}
+	public void setAsync(boolean async) {
+		this.async = async;
 	}
 
 	public boolean isDisableStartup() {
@@ -1600,6 +3191,27 @@ public class Server implements NamedServiceRunner, ClusteredServiceRunner, Clust
 		this.metricsStatisticsProcessor = metricsStatisticsProcessor;
 	}
 
+	/**
+	 * The metric instance for the server runtime itself, this can be null if metrics are disabled
+	 */
+	public MetricInstance getMetricInstance() {
+		return repository.newExecutionContext(SystemPrincipal.ROOT).getMetricInstance(METRICS_ID);
+	}
+	
+	public void setGauge(String name, MetricGauge gauge) {
+		MetricInstance metricInstance = getMetricInstance();
+		if (metricInstance != null) {
+			metricInstance.set(name, gauge);
+		}
+	}
+	
+	public void increment(String name, long amount) {
+		MetricInstance metricInstance = getMetricInstance();
+		if (metricInstance != null) {
+			metricInstance.increment(name, amount);
+		}
+	}
+
 	public MultipleCEPProcessor getProcessor() {
 		return processor;
 	}
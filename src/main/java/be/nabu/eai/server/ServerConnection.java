@@ -48,6 +48,8 @@ public class ServerConnection {
 	private Principal principal;
 	private String name, path;
 	private int socketTimeout = 60*1000*15, connectionTimeout = 60*1000;
+	// whether we talk cbor rather than xml to the remote server, only enable this if the remote server is known to support it
+	private boolean binary;
 	
 	public ServerConnection(SSLContext context, Principal principal, String host, Integer port) {
 		this(context, principal, host, port, false);
@@ -114,6 +116,7 @@ public class ServerConnection {
 			synchronized(this) {
 				try {
 					remote = new RemoteServer(getClient(), new URI((secure ? "https" : "http") + "://" + host + ":" + port + path), principal, Charset.forName("UTF-8"));
+					remote.setBinary(binary);
 				}
 				catch (URISyntaxException e) {
 					throw new RuntimeException(e);
@@ -173,5 +176,16 @@ public class ServerConnection {
 	public void setPrincipal(Principal principal) {
 		this.principal = principal;
 	}
+
+	public boolean isBinary() {
+		return binary;
+	}
+
+	public void setBinary(boolean binary) {
+		this.binary = binary;
+		if (remote != null) {
+			remote.setBinary(binary);
+		}
+	}
 	
 }
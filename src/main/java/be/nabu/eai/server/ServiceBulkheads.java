@@ -0,0 +1,262 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.libs.metrics.api.MetricGauge;
+import be.nabu.libs.services.api.ServiceException;
+
+/**
+ * Limits the amount of concurrent executions of a service or of all the services in a folder.
+ * Limits are configured as "bulkhead.<id>=<limit>", either as a runtime property or as a system (server) property, runtime properties take precedence.
+ * For a service "a.b.c" we check "bulkhead.a.b.c", "bulkhead.a.b" and "bulkhead.a", each configured limit applies.
+ * By default we fail immediately once a limit is reached, you can set "bulkhead.timeout" (in ms) to wait for a permit instead.
+ * The configuration is read once and again after every reset (e.g. a reload), invalid values are logged and ignored.
+ * A service that is called (directly or indirectly) by a service on the same thread that already holds a permit for a bulkhead does not need another one, otherwise a recursive service could deadlock on its own limit.
+ */
+public class ServiceBulkheads {
+
+	public static final String PREFIX = "bulkhead.";
+	public static final String TIMEOUT = PREFIX + "timeout";
+	public static final String REJECTED_CODE = "BULKHEAD-0";
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private Server server;
+	// the parsed limits per configured id
+	private volatile Map<String, Integer> limits;
+	// the semaphore per configured id
+	private Map<String, Bulkhead> bulkheads = new ConcurrentHashMap<String, Bulkhead>();
+	// the resolved bulkheads for each service, from the most specific to the least specific
+	private Map<String, List<Bulkhead>> resolved = new ConcurrentHashMap<String, List<Bulkhead>>();
+	private volatile long timeout;
+	// the bulkheads the current thread holds a permit for and how many nested calls are using it
+	private ThreadLocal<Map<Bulkhead, Integer>> held = new ThreadLocal<Map<Bulkhead, Integer>>();
+
+	public ServiceBulkheads(Server server) {
+		this.server = server;
+	}
+
+	/**
+	 * Acquires a permit for every bulkhead that applies to the service, the acquired bulkheads must be released afterwards
+	 * Because we always acquire from the most specific to the least specific, different services sharing a folder can not deadlock
+	 */
+	public List<Bulkhead> acquire(String serviceId) throws ServiceException {
+		List<Bulkhead> applicable = resolve(serviceId);
+		if (applicable.isEmpty()) {
+			return applicable;
+		}
+		Map<Bulkhead, Integer> holding = held.get();
+		if (holding == null) {
+			holding = new IdentityHashMap<Bulkhead, Integer>();
+			held.set(holding);
+		}
+		List<Bulkhead> acquired = new ArrayList<Bulkhead>(applicable.size());
+		try {
+			for (Bulkhead bulkhead : applicable) {
+				// a nested call on the same thread reuses the permit of its caller
+				Integer count = holding.get(bulkhead);
+				if (count != null) {
+					holding.put(bulkhead, count + 1);
+					acquired.add(bulkhead);
+					continue;
+				}
+				boolean permitted = timeout > 0
+					? bulkhead.semaphore.tryAcquire(timeout, TimeUnit.MILLISECONDS)
+					: bulkhead.semaphore.tryAcquire();
+				if (!permitted) {
+					server.increment("bulkhead.rejected", 1);
+					server.increment("bulkhead.rejected:" + bulkhead.id, 1);
+					throw new ServiceException(REJECTED_CODE, "The concurrency limit of " + bulkhead.limit + " for '" + bulkhead.id + "' has been reached, can not run: " + serviceId);
+				}
+				holding.put(bulkhead, 1);
+				acquired.add(bulkhead);
+			}
+		}
+		catch (InterruptedException e) {
+			release(acquired);
+			Thread.currentThread().interrupt();
+			throw new ServiceException(REJECTED_CODE, "Interrupted while waiting for a permit for: " + serviceId, e);
+		}
+		catch (ServiceException e) {
+			release(acquired);
+			throw e;
+		}
+		return acquired;
+	}
+
+	public void release(List<Bulkhead> acquired) {
+		Map<Bulkhead, Integer> holding = held.get();
+		for (Bulkhead bulkhead : acquired) {
+			Integer count = holding == null ? null : holding.get(bulkhead);
+			if (count != null && count > 1) {
+				holding.put(bulkhead, count - 1);
+			}
+			else {
+				if (holding != null) {
+					holding.remove(bulkhead);
+				}
+				bulkhead.semaphore.release();
+			}
+		}
+		if (holding != null && holding.isEmpty()) {
+			held.remove();
+		}
+	}
+
+	/**
+	 * Parse the configuration again, the new limits apply to the next invoke
+	 * Already running services release their permits on the bulkhead they acquired them from
+	 */
+	public void reset() {
+		resolved.clear();
+		bulkheads.clear();
+		limits = load();
+	}
+
+	public Map<String, Bulkhead> getBulkheads() {
+		return Collections.unmodifiableMap(bulkheads);
+	}
+
+	private Map<String, Integer> getLimits() {
+		if (limits == null) {
+			limits = load();
+		}
+		return limits;
+	}
+
+	/**
+	 * Reads the limits from the system properties and then the runtime properties so the latter take precedence
+	 */
+	private Map<String, Integer> load() {
+		Map<String, String> values = new HashMap<String, String>();
+		collect(System.getProperties(), values);
+		collect(server.getRuntimeProperties(), values);
+		long timeout = 0;
+		Map<String, Integer> limits = new HashMap<String, Integer>();
+		for (Map.Entry<String, String> entry : values.entrySet()) {
+			try {
+				if (entry.getKey().equals(TIMEOUT)) {
+					timeout = Long.parseLong(entry.getValue());
+					if (timeout < 0) {
+						throw new NumberFormatException("Negative timeout");
+					}
+				}
+				else {
+					int limit = Integer.parseInt(entry.getValue());
+					if (limit < 1) {
+						throw new NumberFormatException("The limit must be at least 1");
+					}
+					limits.put(entry.getKey().substring(PREFIX.length()), limit);
+				}
+			}
+			catch (NumberFormatException e) {
+				logger.warn("Ignoring invalid bulkhead configuration " + entry.getKey() + "=" + entry.getValue() + ": " + e.getMessage());
+			}
+		}
+		this.timeout = timeout;
+		return limits;
+	}
+
+	private static void collect(Properties properties, Map<String, String> values) {
+		if (properties != null) {
+			for (String name : properties.stringPropertyNames()) {
+				String value = properties.getProperty(name);
+				if (name.startsWith(PREFIX) && value != null && !value.trim().isEmpty()) {
+					values.put(name, value.trim());
+				}
+			}
+		}
+	}
+
+	private List<Bulkhead> resolve(String serviceId) {
+		List<Bulkhead> list = resolved.get(serviceId);
+		if (list == null) {
+			Map<String, Integer> limits = getLimits();
+			list = new ArrayList<Bulkhead>();
+			String id = serviceId;
+			while (id != null) {
+				Integer limit = limits.get(id);
+				if (limit != null) {
+					list.add(getBulkhead(id, limit));
+				}
+				int index = id.lastIndexOf('.');
+				id = index > 0 ? id.substring(0, index) : null;
+			}
+			resolved.put(serviceId, list);
+		}
+		return list;
+	}
+
+	private Bulkhead getBulkhead(final String id, int limit) {
+		Bulkhead bulkhead = bulkheads.get(id);
+		if (bulkhead == null) {
+			synchronized(bulkheads) {
+				bulkhead = bulkheads.get(id);
+				if (bulkhead == null) {
+					final Bulkhead newBulkhead = new Bulkhead(id, limit);
+					server.setGauge("bulkhead:" + id, new MetricGauge() {
+						@Override
+						public long getValue() {
+							return newBulkhead.getInFlight();
+						}
+					});
+					bulkheads.put(id, newBulkhead);
+					bulkhead = newBulkhead;
+				}
+			}
+		}
+		return bulkhead;
+	}
+
+	public static class Bulkhead {
+		private String id;
+		private int limit;
+		private Semaphore semaphore;
+
+		Bulkhead(String id, int limit) {
+			this.id = id;
+			this.limit = limit;
+			this.semaphore = new Semaphore(limit);
+		}
+		public String getId() {
+			return id;
+		}
+		public int getLimit() {
+			return limit;
+		}
+		public int getInFlight() {
+			return limit - semaphore.availablePermits();
+		}
+		public int getWaiting() {
+			return semaphore.getQueueLength();
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+
+/**
+ * Encodes the payload of cluster executions (the input of a task and the output of a result).
+ * The first byte of the encoded payload identifies the format so the receiving side does not need to know how it was configured.
+ * If the encoded content exceeds the compression threshold, it is gzipped, this is also flagged in the first byte.
+ */
+public class ServiceExecutionCodec {
+
+	public enum Format {
+		XML(0),
+		BINARY(1);
+
+		private int id;
+
+		private Format(int id) {
+			this.id = id;
+		}
+		public int getId() {
+			return id;
+		}
+		public static Format valueOf(int id) {
+			for (Format format : values()) {
+				if (format.id == id) {
+					return format;
+				}
+			}
+			throw new IllegalArgumentException("Unknown format: " + id);
+		}
+	}
+
+	private static final int COMPRESSED = 0x80;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private Format format;
+	// the size (in bytes) beyond which we compress, a negative value disables compression
+	private int compressionThreshold;
+
+	public ServiceExecutionCodec(Format format, int compressionThreshold) {
+		this.format = format;
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	public byte[] encode(ComplexContent content) throws IOException {
+		if (content == null) {
+			return null;
+		}
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		// reserve the header byte
+		output.write(format.getId());
+		marshal(output, content);
+		byte[] bytes = output.toByteArray();
+		if (compressionThreshold >= 0 && bytes.length - 1 > compressionThreshold) {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 2);
+			compressed.write(format.getId() | COMPRESSED);
+			GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+			gzip.write(bytes, 1, bytes.length - 1);
+			gzip.close();
+			// only use the compressed version if it actually helps
+			if (compressed.size() < bytes.length) {
+				bytes = compressed.toByteArray();
+			}
+		}
+		return bytes;
+	}
+
+	public static ComplexContent decode(byte[] bytes, ComplexType type) throws IOException, ParseException {
+		if (bytes == null || bytes.length == 0) {
+			return null;
+		}
+		int header = bytes[0] & 0xff;
+		Format format = Format.valueOf(header & ~COMPRESSED);
+		InputStream input = new ByteArrayInputStream(bytes, 1, bytes.length - 1);
+		if ((header & COMPRESSED) != 0) {
+			input = new GZIPInputStream(input);
+		}
+		try {
+			switch(format) {
+				case BINARY:
+					return CBORCodec.unmarshal(input, type);
+				default:
+					return BindingCache.unmarshalXML(input, type, UTF8, true);
+			}
+		}
+		finally {
+			input.close();
+		}
+	}
+
+	private void marshal(OutputStream output, ComplexContent content) throws IOException {
+		switch(format) {
+			case BINARY:
+				CBORCodec.marshal(output, content);
+			break;
+			default:
+				BindingCache.marshalXML(output, content, UTF8);
+		}
+	}
+
+	public Format getFormat() {
+		return format;
+	}
+
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+}
@@ -0,0 +1,106 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.server;
+
+import java.io.IOException;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+
+/**
+ * A task that has been taken from a queue but has not yet been acknowledged
+ * If the lease expires before it is acknowledged, the task is put back on its queue
+ */
+public class ServiceExecutionLease implements IdentifiedDataSerializable {
+
+	// the version of the wire format, increase this when adding fields (see the ServiceExecutionSerializableFactory)
+	private static final byte VERSION = 1;
+
+	private ServiceExecutionTask task;
+	// the queue the task was taken from and the member that is running it (null if it is waiting for a retry)
+	private String queue, member;
+	// when the lease expires
+	private long expires;
+
+	public ServiceExecutionLease() {
+		// auto
+	}
+
+	public ServiceExecutionLease(ServiceExecutionTask task, String queue, String member, long expires) {
+		this.task = task;
+		this.queue = queue;
+		this.member = member;
+		this.expires = expires;
+	}
+
+	public ServiceExecutionTask getTask() {
+		return task;
+	}
+	public void setTask(ServiceExecutionTask task) {
+		this.task = task;
+	}
+	public String getQueue() {
+		return queue;
+	}
+	public void setQueue(String queue) {
+		this.queue = queue;
+	}
+	public String getMember() {
+		return member;
+	}
+	public void setMember(String member) {
+		this.member = member;
+	}
+	public long getExpires() {
+		return expires;
+	}
+	public void setExpires(long expires) {
+		this.expires = expires;
+	}
+
+	@Override
+	public int getFactoryId() {
+		return ServiceExecutionSerializableFactory.FACTORY_ID;
+	}
+	@Override
+	public int getId() {
+		return ServiceExecutionSerializableFactory.LEASE;
+	}
+	@Override
+	public void writeData(ObjectDataOutput out) throws IOException {
+		out.writeByte(VERSION);
+		out.writeObject(task);
+		out.writeUTF(queue);
+		out.writeUTF(member);
+		out.writeLong(expires);
+		// fields added after version 1 are written in here
+		out.writeByteArray(null);
+	}
+	@Override
+	public void readData(ObjectDataInput in) throws IOException {
+		in.readByte();
+		task = in.readObject();
+		queue = in.readUTF();
+		member = in.readUTF();
+		expires = in.readLong();
+		// a newer server may have added fields we don't know about, we skip them
+		in.readByteArray();
+	}
+}
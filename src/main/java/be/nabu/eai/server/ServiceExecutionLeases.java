@@ -0,0 +1,198 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.libs.cluster.api.ClusterInstance;
+
+/**
+ * Provides at-least-once execution for tasks taken from the cluster queues.
+ * When a task is taken, a lease is stored in a distributed map, it is removed once the task has run and its result was handled.
+ * If the task fails, the lease is kept for a backoff period after which the task is requeued, after too many attempts it ends up in the dead letter queue.
+ * If the member running the task disappears or does not renew the lease in time, the task is requeued by any other member.
+ * Because a task can be redelivered after it has (partially) run, services executed in this mode should be idempotent.
+ */
+public class ServiceExecutionLeases {
+
+	public static final String LEASES = "server.execute.leases";
+	public static final String DEAD_LETTER = "server.execute.dead";
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private Server server;
+	// the leases for tasks that are running on this member, these are renewed as long as they run
+	private Map<String, ServiceExecutionLease> local = new ConcurrentHashMap<String, ServiceExecutionLease>();
+	// how long a task remains invisible to other members before it is redelivered
+	private long visibilityTimeout;
+	// the maximum amount of attempts before a task is dead lettered
+	private int maxAttempts;
+	// the base backoff before a failed task is retried, it doubles with every attempt
+	private long backoff;
+	private Thread reaper;
+
+	public ServiceExecutionLeases(Server server, long visibilityTimeout, int maxAttempts, long backoff) {
+		this.server = server;
+		this.visibilityTimeout = visibilityTimeout;
+		this.maxAttempts = maxAttempts;
+		this.backoff = backoff;
+	}
+
+	public ServiceExecutionLease lease(String queue, ServiceExecutionTask task) {
+		ServiceExecutionLease lease = new ServiceExecutionLease(task, queue, server.getName(), System.currentTimeMillis() + visibilityTimeout);
+		getLeases().put(task.getTaskId(), lease);
+		local.put(task.getTaskId(), lease);
+		return lease;
+	}
+
+	public void acknowledge(ServiceExecutionLease lease) {
+		local.remove(lease.getTask().getTaskId());
+		getLeases().remove(lease.getTask().getTaskId());
+	}
+
+	/**
+	 * The task failed, we keep the lease until the backoff is over, the reaper will then requeue it
+	 */
+	public void fail(ServiceExecutionLease lease, String errorCode) {
+		local.remove(lease.getTask().getTaskId());
+		ServiceExecutionTask task = lease.getTask();
+		task.setLastError(errorCode);
+		long delay = backoff * (1l << Math.min(task.getAttempts(), 16));
+		ServiceExecutionLease retry = new ServiceExecutionLease(task, lease.getQueue(), null, System.currentTimeMillis() + Math.min(delay, visibilityTimeout));
+		getLeases().put(task.getTaskId(), retry);
+		logger.warn("Task " + task.getServiceId() + " (" + task.getTaskId() + ") failed on attempt " + (task.getAttempts() + 1) + (errorCode == null ? "" : ": " + errorCode));
+	}
+
+	public void start() {
+		if (reaper == null) {
+			reaper = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (!server.isShuttingDown()) {
+						try {
+							renew();
+							reap(null);
+						}
+						catch (Exception e) {
+							if (!server.isShuttingDown()) {
+								logger.error("Could not check leases", e);
+							}
+						}
+						try {
+							Thread.sleep(Math.max(100, Math.min(1000, visibilityTimeout / 4)));
+						}
+						catch (InterruptedException e) {
+							continue;
+						}
+					}
+				}
+			});
+			reaper.setDaemon(true);
+			reaper.setName("cluster-lease-reaper");
+			reaper.start();
+		}
+	}
+
+	/**
+	 * Requeue everything that was running on a member that has left
+	 */
+	public void requeue(String member) {
+		reap(member);
+	}
+
+	/**
+	 * Tasks that are still running here should not be redelivered
+	 */
+	private void renew() {
+		long now = System.currentTimeMillis();
+		for (ServiceExecutionLease lease : local.values()) {
+			if (lease.getExpires() - now < visibilityTimeout / 2) {
+				// the lease we hold is never modified so it can be compared with what is in the cluster
+				ServiceExecutionLease renewed = new ServiceExecutionLease(lease.getTask(), lease.getQueue(), lease.getMember(), now + visibilityTimeout);
+				// only renew if no one has reaped, failed or taken it over in the meantime
+				if (getLeases().replace(lease.getTask().getTaskId(), lease, renewed)) {
+					local.replace(lease.getTask().getTaskId(), lease, renewed);
+				}
+				else {
+					local.remove(lease.getTask().getTaskId(), lease);
+				}
+			}
+		}
+	}
+
+	private void reap(String member) {
+		Map<String, ServiceExecutionLease> leases = getLeases();
+		long now = System.currentTimeMillis();
+		List<Map.Entry<String, ServiceExecutionLease>> entries = new ArrayList<Map.Entry<String, ServiceExecutionLease>>(leases.entrySet());
+		for (Map.Entry<String, ServiceExecutionLease> entry : entries) {
+			ServiceExecutionLease lease = entry.getValue();
+			boolean expired = member == null ? lease.getExpires() < now : member.equals(lease.getMember());
+			// every member reaps, only the one that manages to remove the lease requeues it
+			if (expired && leases.remove(entry.getKey(), lease)) {
+				redeliver(lease);
+			}
+		}
+	}
+
+	private void redeliver(ServiceExecutionLease lease) {
+		ServiceExecutionTask task = lease.getTask();
+		task.setAttempts(task.getAttempts() + 1);
+		task.setEnqueued(System.currentTimeMillis());
+		ClusterInstance cluster = server.getCluster();
+		try {
+			if (task.getAttempts() >= maxAttempts) {
+				logger.error("Task " + task.getServiceId() + " (" + task.getTaskId() + ") failed " + task.getAttempts() + " times, moving it to the dead letter queue");
+				cluster.queue(DEAD_LETTER).put(task);
+				server.increment("cluster.deadLettered", 1);
+			}
+			else {
+				cluster.queue(lease.getQueue()).put(task);
+				server.increment("cluster.redelivered", 1);
+				server.increment("cluster.redelivered:" + lease.getQueue(), 1);
+			}
+		}
+		catch (InterruptedException e) {
+			// put it back so someone else can try
+			getLeases().put(task.getTaskId(), lease);
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, ServiceExecutionLease> getLeases() {
+		return (Map<String, ServiceExecutionLease>) server.getCluster().map(LEASES);
+	}
+
+	public long getVisibilityTimeout() {
+		return visibilityTimeout;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public long getBackoff() {
+		return backoff;
+	}
+}
@@ -17,13 +17,22 @@
 
 package be.nabu.eai.server;
 
-import java.io.Serializable;
+import java.io.IOException;
 
-public class ServiceExecutionResult implements Serializable {
-	private static final long serialVersionUID = -7633861906637395222L;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+
+public class ServiceExecutionResult implements IdentifiedDataSerializable {
+	// the version of the wire format, increase this when adding fields (see the ServiceExecutionSerializableFactory)
+	private static final byte VERSION = 3;
 	
-	private String serviceId, target, output, runId;
+	private String serviceId, target, runId;
 	private String errorCode, errorLog;
+	// the encoded output, see the ServiceExecutionCodec
+	private byte[] output;
+	// if the output is too large, it is stored in a distributed map and we only send the key
+	private String outputReference;
 
 	public String getServiceId() {
 		return serviceId;
@@ -40,13 +49,20 @@ public class ServiceExecutionResult implements Serializable {
 		this.target = target;
 	}
 
-	public String getOutput() {
+	public byte[] getOutput() {
 		return output;
 	}
-	public void setOutput(String output) {
+	public void setOutput(byte[] output) {
 		this.output = output;
 	}
 
+	public String getOutputReference() {
+		return outputReference;
+	}
+	public void setOutputReference(String outputReference) {
+		this.outputReference = outputReference;
+	}
+
 	public String getRunId() {
 		return runId;
 	}
@@ -68,4 +84,42 @@ public class ServiceExecutionResult implements Serializable {
 		this.errorLog = errorLog;
 	}
 	
+	@Override
+	public int getFactoryId() {
+		return ServiceExecutionSerializableFactory.FACTORY_ID;
+	}
+	@Override
+	public int getId() {
+		return ServiceExecutionSerializableFactory.RESULT;
+	}
+	@Override
+	public void writeData(ObjectDataOutput out) throws IOException {
+		out.writeByte(VERSION);
+		out.writeUTF(serviceId);
+		out.writeUTF(target);
+		out.writeUTF(runId);
+		out.writeUTF(errorCode);
+		out.writeUTF(errorLog);
+		out.writeByteArray(output);
+		out.writeUTF(outputReference);
+		// fields added after version 3 are written in here
+		out.writeByteArray(null);
+	}
+	@Override
+	public void readData(ObjectDataInput in) throws IOException {
+		byte version = in.readByte();
+		serviceId = in.readUTF();
+		target = in.readUTF();
+		runId = in.readUTF();
+		errorCode = in.readUTF();
+		errorLog = in.readUTF();
+		output = in.readByteArray();
+		if (version >= 2) {
+			outputReference = in.readUTF();
+		}
+		// a newer server may have added fields we don't know about, we skip them
+		if (version >= 3) {
+			in.readByteArray();
+		}
+	}
 }
@@ -0,0 +1,47 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.server;
+
+import com.hazelcast.nio.serialization.DataSerializableFactory;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+
+/**
+ * Allows hazelcast to (de)serialize the cluster execution messages without java serialization
+ * This format can not be read by servers that still use the java serialized messages (with the input and output as xml strings) and vice versa, all members of a cluster must be upgraded at the same time.
+ * Within this format every message starts with a version and ends with an extension block (a byte array). New fields are only ever written inside that block, after the ones that are already there.
+ * A newer server reads older messages and an older server reads the fields it knows from newer messages and skips the rest of the block, so members can be upgraded one at a time.
+ */
+public class ServiceExecutionSerializableFactory implements DataSerializableFactory {
+
+	public static final int FACTORY_ID = 1001;
+	
+	public static final int TASK = 1;
+	public static final int RESULT = 2;
+	public static final int LEASE = 3;
+	
+	@Override
+	public IdentifiedDataSerializable create(int typeId) {
+		switch(typeId) {
+			case TASK: return new ServiceExecutionTask();
+			case RESULT: return new ServiceExecutionResult();
+			case LEASE: return new ServiceExecutionLease();
+			default: return null;
+		}
+	}
+
+}
@@ -17,13 +17,31 @@
 
 package be.nabu.eai.server;
 
-import java.io.Serializable;
+import java.io.IOException;
 
-public class ServiceExecutionTask implements Serializable {
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+
+public class ServiceExecutionTask implements IdentifiedDataSerializable {
 	
-	private static final long serialVersionUID = -172049359373071069L;
+	// the version of the wire format, increase this when adding fields (see the ServiceExecutionSerializableFactory)
+	private static final byte VERSION = 5;
 
-	private String serviceId, target, input, runId;
+	private String serviceId, target, runId;
+	// the member that wants the result, it is sent to its reply queue rather than broadcast to everyone
+	private String replyTo;
+	// the key that determined which member should run this task, it allows us to reroute it if that member goes away
+	private Object partitionKey;
+	// a unique id for the task, used to acknowledge it in at-least-once mode
+	private String taskId;
+	// the amount of times delivery has failed and the error code of the last failure
+	private int attempts;
+	private String lastError;
+	// when the task was put on its current queue
+	private long enqueued;
+	// the encoded input, see the ServiceExecutionCodec
+	private byte[] input;
 
 	public String getRunId() {
 		return runId;
@@ -37,16 +55,101 @@ public class ServiceExecutionTask implements Serializable {
 	public void setServiceId(String serviceId) {
 		this.serviceId = serviceId;
 	}
-	public String getInput() {
+	public byte[] getInput() {
 		return input;
 	}
-	public void setInput(String input) {
+	public void setInput(byte[] input) {
 		this.input = input;
 	}
+	public String getReplyTo() {
+		return replyTo;
+	}
+	public void setReplyTo(String replyTo) {
+		this.replyTo = replyTo;
+	}
+	public Object getPartitionKey() {
+		return partitionKey;
+	}
+	public void setPartitionKey(Object partitionKey) {
+		this.partitionKey = partitionKey;
+	}
+	public String getTaskId() {
+		return taskId;
+	}
+	public void setTaskId(String taskId) {
+		this.taskId = taskId;
+	}
+	public int getAttempts() {
+		return attempts;
+	}
+	public void setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
+	public String getLastError() {
+		return lastError;
+	}
+	public void setLastError(String lastError) {
+		this.lastError = lastError;
+	}
+	public long getEnqueued() {
+		return enqueued;
+	}
+	public void setEnqueued(long enqueued) {
+		this.enqueued = enqueued;
+	}
 	public String getTarget() {
 		return target;
 	}
 	public void setTarget(String target) {
 		this.target = target;
 	}
+	
+	@Override
+	public int getFactoryId() {
+		return ServiceExecutionSerializableFactory.FACTORY_ID;
+	}
+	@Override
+	public int getId() {
+		return ServiceExecutionSerializableFactory.TASK;
+	}
+	@Override
+	public void writeData(ObjectDataOutput out) throws IOException {
+		out.writeByte(VERSION);
+		out.writeUTF(serviceId);
+		out.writeUTF(target);
+		out.writeUTF(runId);
+		out.writeByteArray(input);
+		out.writeUTF(replyTo);
+		out.writeObject(partitionKey);
+		out.writeUTF(taskId);
+		out.writeInt(attempts);
+		out.writeUTF(lastError);
+		out.writeLong(enqueued);
+		// fields added after version 5 are written in here
+		out.writeByteArray(null);
+	}
+	@Override
+	public void readData(ObjectDataInput in) throws IOException {
+		byte version = in.readByte();
+		serviceId = in.readUTF();
+		target = in.readUTF();
+		runId = in.readUTF();
+		input = in.readByteArray();
+		if (version >= 2) {
+			replyTo = in.readUTF();
+		}
+		if (version >= 3) {
+			partitionKey = in.readObject();
+		}
+		if (version >= 4) {
+			taskId = in.readUTF();
+			attempts = in.readInt();
+			lastError = in.readUTF();
+			enqueued = in.readLong();
+		}
+		// a newer server may have added fields we don't know about, we skip them
+		if (version >= 5) {
+			in.readByteArray();
+		}
+	}
 }
@@ -0,0 +1,97 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.nabu.libs.services.api.ServiceException;
+
+/**
+ * A fixed size pool with a bounded work queue, once the queue is full the rejection policy determines what happens
+ */
+public class ServicePool extends ThreadPoolExecutor {
+
+	public static final String REJECTED_CODE = "POOL-0";
+
+	public enum RejectionPolicy {
+		// block the submitting thread until there is room in the queue
+		BLOCK,
+		// run the task in the submitting thread
+		CALLER_RUNS,
+		// throw an exception
+		FAIL
+	}
+
+	private RejectionPolicy policy;
+	private AtomicLong rejected = new AtomicLong();
+
+	public ServicePool(int poolSize, int queueSize, RejectionPolicy policy, ThreadFactory threadFactory) {
+		super(poolSize, poolSize, 0l, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize), threadFactory);
+		this.policy = policy;
+		setRejectedExecutionHandler(new RejectedExecutionHandler() {
+			@Override
+			public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+				rejected.incrementAndGet();
+				if (executor.isShutdown()) {
+					throw new RejectedExecutionException("The service pool has been shut down");
+				}
+				switch(ServicePool.this.policy) {
+					case BLOCK:
+						try {
+							executor.getQueue().put(runnable);
+						}
+						catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new RejectedExecutionException("Interrupted while waiting for room in the service pool", e);
+						}
+					break;
+					case CALLER_RUNS:
+						runnable.run();
+					break;
+					default:
+						throw new RejectedExecutionException("The service pool is saturated", new ServiceException(REJECTED_CODE, "The service pool is saturated (" + executor.getQueue().size() + " queued tasks)"));
+				}
+			}
+		});
+	}
+
+	public RejectionPolicy getPolicy() {
+		return policy;
+	}
+
+	public int getQueueDepth() {
+		return getQueue().size();
+	}
+
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * The pool is saturated if all threads are busy and there is no more room in the queue
+	 */
+	public boolean isSaturated() {
+		return getActiveCount() >= getMaximumPoolSize() && getQueue().remainingCapacity() == 0;
+	}
+}
@@ -34,7 +34,6 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 import java.util.TimeZone;
-import java.util.concurrent.Executors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -60,6 +59,7 @@ import be.nabu.libs.authentication.api.PermissionHandler;
 import be.nabu.libs.authentication.api.RoleHandler;
 import be.nabu.libs.cluster.hazelcast.HazelcastClusterInstance;
 import be.nabu.libs.cluster.local.LocalInstance;
+import be.nabu.libs.metrics.api.MetricGauge;
 import be.nabu.libs.resources.ResourceFactory;
 import be.nabu.libs.resources.ResourceReadableContainer;
 import be.nabu.libs.resources.ResourceUtils;
@@ -304,7 +304,68 @@ public class Standalone {
 		long historizationInterval = Long.parseLong(getArgument("historizationInterval", "5000", args));
 		int historySize = Integer.parseInt(getArgument("historySize", "1000", args));
 		
-		int pool = Integer.parseInt(getArgument("pool", "" + Runtime.getRuntime().availableProcessors(), args));
+		// the pool is either a fixed amount of threads or "virtual" to run services on virtual threads (if the jvm supports it)
+		String pool = getArgument("pool", "" + Runtime.getRuntime().availableProcessors(), args);
+		// the maximum amount of services that run concurrently on virtual threads, beyond that they are queued like in a fixed pool
+		int poolVirtualSize = Integer.parseInt(getArgument("poolVirtualSize", "1000", args));
+		// the maximum amount of tasks that can be queued for the server pool and what to do once that limit is reached
+		int poolQueueSize = Integer.parseInt(getArgument("poolQueueSize", "10000", args));
+		ServicePool.RejectionPolicy poolRejectionPolicy = ServicePool.RejectionPolicy.valueOf(getArgument("poolRejectionPolicy", "CALLER_RUNS", args).toUpperCase());
+		// the amount of threads that take work from the cluster queue and the maximum amount of tasks they take at once
+		int clusterConsumers = Integer.parseInt(getArgument("clusterConsumers", "1", args));
+		int clusterBatchSize = Integer.parseInt(getArgument("clusterBatchSize", "1", args));
+		// how many cluster tasks may wait in the local pool queue on top of the idle threads
+		int clusterQueueAllowance = Integer.parseInt(getArgument("clusterQueueAllowance", "0", args));
+		// how long tasks targeted at a departed member are kept for it before they are dead lettered
+		long clusterParkedTaskTtl = Long.parseLong(getArgument("clusterParkedTaskTtl", "3600000", args));
+		// the encoding of cluster execution payloads (xml or binary) and the size beyond which they are compressed
+		String clusterCodec = getArgument("clusterCodec", "xml", args);
+		int clusterCompressionThreshold = Integer.parseInt(getArgument("clusterCompressionThreshold", "65536", args));
+		// results with outputs larger than this are passed by reference through a distributed map
+		int clusterResultReferenceThreshold = Integer.parseInt(getArgument("clusterResultReferenceThreshold", "262144", args));
+		// how work for any member is distributed: "shared" (a queue anyone can take from) or "least_loaded" (based on the heartbeats)
+		Server.Routing clusterRouting = Server.Routing.valueOf(getArgument("clusterRouting", "shared", args).toUpperCase());
+		// at-least-once execution of queued tasks: how long a task remains leased, how often it is attempted and the base backoff (ms) between attempts
+		boolean clusterAtLeastOnce = Boolean.parseBoolean(getArgument("clusterAtLeastOnce", "false", args));
+		long clusterVisibilityTimeout = Long.parseLong(getArgument("clusterVisibilityTimeout", "300000", args));
+		int clusterMaxAttempts = Integer.parseInt(getArgument("clusterMaxAttempts", "5", args));
+		long clusterRetryBackoff = Long.parseLong(getArgument("clusterRetryBackoff", "1000", args));
+		// start independent artifacts concurrently, with the amount of threads and the time (ms) we wait for a single artifact
+		boolean parallelStartup = Boolean.parseBoolean(getArgument("parallelStartup", "false", args));
+		int startupThreads = Integer.parseInt(getArgument("startupThreads", "8", args));
+		long startupTimeout = Long.parseLong(getArgument("startupTimeout", "300000", args));
+		// the maximum time (ms) the shutdown may take in total and per artifact, artifacts in the same phase are stopped concurrently
+		long shutdownTimeout = Long.parseLong(getArgument("shutdownTimeout", "60000", args));
+		long shutdownArtifactTimeout = Long.parseLong(getArgument("shutdownArtifactTimeout", "30000", args));
+		// whether a shutdown first waits (up to the drain timeout in ms) for running services after it stops taking on new work
+		boolean drainOnShutdown = Boolean.parseBoolean(getArgument("drainOnShutdown", "false", args));
+		long drainTimeout = Long.parseLong(getArgument("drainTimeout", "30000", args));
+		// whether the output of a rest invoke is streamed with chunked encoding rather than buffered in full
+		boolean streamInvokeOutput = Boolean.parseBoolean(getArgument("streamInvokeOutput", "false", args));
+		// the maximum amount of outputs streamed at once (the rest is buffered) and how long (ms) a client may stop reading
+		int streamInvokeThreads = Integer.parseInt(getArgument("streamInvokeThreads", "16", args));
+		long streamInvokeTimeout = Long.parseLong(getArgument("streamInvokeTimeout", "60000", args));
+		// how long (ms) a client waits for the next content of a stream, 0 waits until the stream ends
+		long streamInvokeReadTimeout = Long.parseLong(getArgument("streamInvokeReadTimeout", "0", args));
+		// the maximum amount of items of a batch invoke that run concurrently on the pool
+		int batchParallelism = Integer.parseInt(getArgument("batchParallelism", "8", args));
+		// the maximum amount of items in a single batch invoke
+		int batchMaxItems = Integer.parseInt(getArgument("batchMaxItems", "1000", args));
+		// how long (ms) a single item of a parallel batch may run before it is reported as failed, 0 is no limit
+		long batchItemTimeout = Long.parseLong(getArgument("batchItemTimeout", "0", args));
+		// how long (ms) the results of asynchronous invocations are kept, the maximum size (bytes) of all results combined and how many can be running or stored at once
+		long asyncResultTtl = Long.parseLong(getArgument("asyncResultTtl", "3600000", args));
+		long asyncResultMaxSize = Long.parseLong(getArgument("asyncResultMaxSize", "" + (1024l * 1024 * 64), args));
+		int asyncMaxExecutions = Integer.parseInt(getArgument("asyncMaxExecutions", "1000", args));
+		// the comma separated urls (scheme, host, port and optionally a path prefix) that asynchronous results may be posted to, without it callbacks are disabled
+		String asyncCallbackAllowlist = getArgument("asyncCallbackAllowlist", "", args);
+		int asyncCallbackThreads = Integer.parseInt(getArgument("asyncCallbackThreads", "2", args));
+		// the limits when parsing cbor content: the maximum length (bytes) of a single string, elements in a single array or map and the nesting depth
+		long cborMaxLength = Long.parseLong(getArgument("cborMaxLength", "" + (1024l * 1024 * 16), args));
+		long cborMaxElements = Long.parseLong(getArgument("cborMaxElements", "1000000", args));
+		int cborMaxDepth = Integer.parseInt(getArgument("cborMaxDepth", "64", args));
+		// whether service invocations should be handed off to the server pool instead of running in the calling thread
+		boolean async = Boolean.parseBoolean(getArgument("async", "false", args));
 		
 		String authenticationService = getArgument("authentication", null, args);
 		String roleService = getArgument("role", null, args);
@@ -395,7 +456,52 @@ public class Standalone {
 		server.setEnableSnapshots(enableSnapshots);
 		// make sure we also use the correct pool here, otherwise the thread context is wrong and we might not be able to access libraries available in the repository
 		// we had this with an invoke $all to bringOnline where startup listeners failed to for example find the sftp library, the jdbc pool artifact etc etc
-		server.setPool(Executors.newFixedThreadPool(pool, new RepositoryThreadFactory(repositoryInstance)));
+		if ("virtual".equalsIgnoreCase(pool) && VirtualThreads.isSupported()) {
+			logger.info("Using up to " + poolVirtualSize + " virtual threads for the server pool");
+			server.setPool(new ServicePool(poolVirtualSize, poolQueueSize, poolRejectionPolicy, VirtualThreads.newThreadFactory(repositoryInstance)));
+			VirtualThreads.monitorPinning();
+			server.setGauge("pool.pinned", new MetricGauge() {
+				@Override
+				public long getValue() {
+					return VirtualThreads.getPinnedCount();
+				}
+			});
+		}
+		else {
+			if ("virtual".equalsIgnoreCase(pool)) {
+				logger.warn("Virtual threads are not supported on this jvm, falling back to a fixed pool");
+				pool = "" + Runtime.getRuntime().availableProcessors();
+			}
+			server.setPool(new ServicePool(Integer.parseInt(pool), poolQueueSize, poolRejectionPolicy, new RepositoryThreadFactory(repositoryInstance)));
+		}
+		server.setAsync(async);
+		server.setClusterConsumers(clusterConsumers);
+		server.setClusterBatchSize(clusterBatchSize);
+		server.setClusterQueueAllowance(clusterQueueAllowance);
+		server.setClusterParkedTaskTtl(clusterParkedTaskTtl);
+		server.setClusterResultReferenceThreshold(clusterResultReferenceThreshold);
+		server.setClusterRouting(clusterRouting);
+		server.setParallelStartup(parallelStartup);
+		server.setStartupThreads(startupThreads);
+		server.setStartupTimeout(startupTimeout);
+		server.setShutdownTimeout(shutdownTimeout);
+		server.setShutdownArtifactTimeout(shutdownArtifactTimeout);
+		server.setDrainOnShutdown(drainOnShutdown);
+		server.setDrainTimeout(drainTimeout);
+		server.setStreamInvokeOutput(streamInvokeOutput);
+		server.setResponseStreamer(new ResponseStreamer(streamInvokeThreads, 8192, streamInvokeTimeout, streamInvokeReadTimeout));
+		server.setBatchParallelism(batchParallelism);
+		server.setBatchMaxItems(batchMaxItems);
+		server.setBatchItemTimeout(batchItemTimeout);
+		CBORCodec.setMaxLength(cborMaxLength);
+		CBORCodec.setMaxElements(cborMaxElements);
+		CBORCodec.setMaxDepth(cborMaxDepth);
+		server.setAsyncExecutions(new AsyncExecutions(asyncResultTtl, asyncResultMaxSize, asyncMaxExecutions));
+		server.setAsyncCallbacks(new AsyncCallbacks(Arrays.asList(asyncCallbackAllowlist.split("[\\s]*,[\\s]*")), asyncCallbackThreads, 1000, 30000));
+		if (clusterAtLeastOnce) {
+			server.setExecutionLeases(new ServiceExecutionLeases(server, clusterVisibilityTimeout, clusterMaxAttempts, clusterRetryBackoff));
+		}
+		server.setExecutionCodec(new ServiceExecutionCodec(ServiceExecutionCodec.Format.valueOf(clusterCodec.toUpperCase()), clusterCompressionThreshold));
 		// set the server as the runner for the repository
 		repositoryInstance.setServiceRunner(server);
 		
@@ -442,9 +548,12 @@ public class Standalone {
 //			config.getMemberAttributeConfig().setAttribute("group", repositoryInstance.getGroup());
 //			config.getMemberAttributeConfig().setAttribute("name", repositoryInstance.getName());
 			config.setClassLoader(repositoryInstance.getClassLoader());
+			// the execution messages have their own compact serialization
+			config.getSerializationConfig().addDataSerializableFactory(ServiceExecutionSerializableFactory.FACTORY_ID, new ServiceExecutionSerializableFactory());
 			logger.debug("Creating cluster instance...");
 	        HazelcastInstance instance = Hazelcast.newHazelcastInstance(config);
 			server.setCluster(new HazelcastClusterInstance(instance));
+			server.setPartitionResolver(new HazelcastPartitionResolver(instance));
 			server.addShutdownAction(new Runnable() {
 				@Override
 				public void run() {
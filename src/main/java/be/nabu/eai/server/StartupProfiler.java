@@ -0,0 +1,181 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import be.nabu.eai.server.StartupReport.StartupStep;
+
+/**
+ * Keeps a timeline of everything that happens while the server (re)starts its artifacts
+ * Steps are only recorded between begin() and end(), outside of that (e.g. a manual restart) nothing is kept
+ */
+public class StartupProfiler {
+
+	private volatile boolean recording;
+	private List<StartupStep> steps = Collections.synchronizedList(new ArrayList<StartupStep>());
+	// the id and action of every step that has an outcome, a step that timed out can still finish later but it should only be counted once
+	private Set<String> recorded = Collections.synchronizedSet(new HashSet<String>());
+	private volatile DependencyGraph graph;
+	private volatile Date started;
+	private volatile boolean reload;
+	// the report of the last completed (re)start
+	private volatile StartupReport report;
+
+	public void begin(boolean reload) {
+		this.reload = reload;
+		this.started = new Date();
+		this.graph = null;
+		steps.clear();
+		recorded.clear();
+		recording = true;
+	}
+
+	public StartupReport end() {
+		recording = false;
+		report = buildReport(new Date());
+		return report;
+	}
+
+	public boolean isRecording() {
+		return recording;
+	}
+
+	/**
+	 * Start a step, this returns null if we are not recording
+	 */
+	public StartupStep step(String id, String action) {
+		if (!recording) {
+			return null;
+		}
+		StartupStep step = new StartupStep();
+		step.setId(id);
+		step.setAction(action);
+		step.setThread(Thread.currentThread().getName());
+		step.setStarted(new Date());
+		return step;
+	}
+
+	public void done(StartupStep step, Throwable exception) {
+		if (step != null) {
+			step.setDuration(new Date().getTime() - step.getStarted().getTime());
+			step.setOutcome(exception == null ? "success" : "failure");
+			if (exception != null) {
+				step.setError(exception.getMessage() == null ? exception.getClass().getName() : exception.getMessage());
+			}
+			if (recorded.add(getKey(step.getId(), step.getAction()))) {
+				steps.add(step);
+			}
+		}
+	}
+
+	/**
+	 * Mark a step that we stopped waiting for
+	 */
+	public void timeout(String id, String action, long duration) {
+		if (recording && recorded.add(getKey(id, action))) {
+			StartupStep step = new StartupStep();
+			step.setId(id);
+			step.setAction(action);
+			step.setStarted(new Date(new Date().getTime() - duration));
+			step.setDuration(duration);
+			step.setOutcome("timeout");
+			steps.add(step);
+		}
+	}
+
+	/**
+	 * A timeout is reported for the phase (start or finish) while the step itself may be a start, restart or run
+	 */
+	private static String getKey(String id, String action) {
+		return id + ":" + ("finish".equals(action) || "listen".equals(action) ? action : "start");
+	}
+
+	public void setGraph(DependencyGraph graph) {
+		this.graph = graph;
+	}
+
+	/**
+	 * The report of the last completed (re)start or, if we are currently starting, what we have so far
+	 */
+	public StartupReport getReport() {
+		return recording ? buildReport(null) : report;
+	}
+
+	private StartupReport buildReport(Date stopped) {
+		StartupReport report = new StartupReport();
+		report.setStarted(started);
+		report.setStopped(stopped);
+		report.setReload(reload);
+		List<StartupStep> copy;
+		synchronized(steps) {
+			copy = new ArrayList<StartupStep>(steps);
+		}
+		report.setSteps(copy);
+		// the weight of an artifact is the total time spent on it
+		Map<String, Long> weights = new HashMap<String, Long>();
+		for (StartupStep step : copy) {
+			Long weight = weights.get(step.getId());
+			weights.put(step.getId(), (weight == null ? 0 : weight) + step.getDuration());
+		}
+		List<String> path = new ArrayList<String>();
+		long duration = 0;
+		if (graph != null) {
+			// longest weighted path, artifacts are visited after their dependencies so the cost of each dependency is known
+			Map<String, Long> cost = new HashMap<String, Long>();
+			Map<String, String> predecessors = new HashMap<String, String>();
+			String last = null;
+			for (String id : graph.sort()) {
+				long best = 0;
+				String predecessor = null;
+				for (String dependency : graph.getDependencies(id)) {
+					Long dependencyCost = cost.get(dependency);
+					if (dependencyCost != null && dependencyCost > best) {
+						best = dependencyCost;
+						predecessor = dependency;
+					}
+				}
+				Long weight = weights.get(id);
+				long total = best + (weight == null ? 0 : weight);
+				cost.put(id, total);
+				if (predecessor != null) {
+					predecessors.put(id, predecessor);
+				}
+				if (total > duration) {
+					duration = total;
+					last = id;
+				}
+			}
+			while (last != null) {
+				path.add(0, last);
+				last = predecessors.get(last);
+			}
+		}
+		report.setCriticalPath(path);
+		report.setCriticalPathDuration(duration);
+		return report;
+	}
+}
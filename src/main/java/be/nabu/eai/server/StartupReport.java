@@ -0,0 +1,123 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.server;
+
+import java.util.Date;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+@XmlRootElement
+public class StartupReport {
+	private Date started, stopped;
+	// whether this was the initial boot or a reload
+	private boolean reload;
+	private List<StartupStep> steps;
+	// the chain of dependent artifacts that took the longest to start, this is the minimum startup time no matter how much we parallelize
+	private List<String> criticalPath;
+	private long criticalPathDuration;
+
+	public Date getStarted() {
+		return started;
+	}
+	public void setStarted(Date started) {
+		this.started = started;
+	}
+	public Date getStopped() {
+		return stopped;
+	}
+	public void setStopped(Date stopped) {
+		this.stopped = stopped;
+	}
+	public boolean isReload() {
+		return reload;
+	}
+	public void setReload(boolean reload) {
+		this.reload = reload;
+	}
+	public List<StartupStep> getSteps() {
+		return steps;
+	}
+	public void setSteps(List<StartupStep> steps) {
+		this.steps = steps;
+	}
+	public List<String> getCriticalPath() {
+		return criticalPath;
+	}
+	public void setCriticalPath(List<String> criticalPath) {
+		this.criticalPath = criticalPath;
+	}
+	public long getCriticalPathDuration() {
+		return criticalPathDuration;
+	}
+	public void setCriticalPathDuration(long criticalPathDuration) {
+		this.criticalPathDuration = criticalPathDuration;
+	}
+
+	public static class StartupStep {
+		// the artifact (or listener) and what we did with it: start, restart, finish, run or listen
+		private String id, action, thread, outcome, error;
+		private Date started;
+		// how long it took (in ms)
+		private long duration;
+
+		public String getId() {
+			return id;
+		}
+		public void setId(String id) {
+			this.id = id;
+		}
+		public String getAction() {
+			return action;
+		}
+		public void setAction(String action) {
+			this.action = action;
+		}
+		public String getThread() {
+			return thread;
+		}
+		public void setThread(String thread) {
+			this.thread = thread;
+		}
+		public String getOutcome() {
+			return outcome;
+		}
+		public void setOutcome(String outcome) {
+			this.outcome = outcome;
+		}
+		public String getError() {
+			return error;
+		}
+		public void setError(String error) {
+			this.error = error;
+		}
+		public Date getStarted() {
+			return started;
+		}
+		public void setStarted(Date started) {
+			this.started = started;
+		}
+		public long getDuration() {
+			return duration;
+		}
+		public void setDuration(long duration) {
+			this.duration = duration;
+		}
+	}
+}
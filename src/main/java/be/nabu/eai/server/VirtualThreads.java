@@ -0,0 +1,114 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.server;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.eai.repository.api.MavenRepository;
+
+/**
+ * The server is compiled against java 8 so we can not reference the virtual thread api directly, everything is done through reflection
+ * This means a "pool=virtual" setting only takes effect when the server is actually running on a jvm that supports it (21+)
+ */
+public class VirtualThreads {
+
+	private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+	private static Logger logger = LoggerFactory.getLogger(VirtualThreads.class);
+	private static AtomicLong pinned = new AtomicLong();
+	private static volatile boolean monitoring;
+
+	public static boolean isSupported() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return true;
+		}
+		catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Creates a factory for virtual threads, it is used by the service pool so the concurrency limit, queue bound and rejection policy still apply
+	 * Like the RepositoryThreadFactory, each thread gets the repository classloader as its context classloader
+	 */
+	public static ThreadFactory newThreadFactory(final MavenRepository repository) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			// we must go through the public interface, the actual builder implementation is not accessible
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "nabu-virtual-", 0l);
+			final ThreadFactory virtualFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			return new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = virtualFactory.newThread(runnable);
+					thread.setContextClassLoader(repository.getClassLoader());
+					return thread;
+				}
+			};
+		}
+		catch (Exception e) {
+			throw new IllegalStateException("Virtual threads are not supported on this jvm", e);
+		}
+	}
+
+	/**
+	 * Virtual threads that block inside a synchronized block (or a native frame) pin their carrier thread
+	 * We use a jfr stream to keep track of how often this happens, the stream is only started once
+	 */
+	public static synchronized void monitorPinning() {
+		if (!monitoring) {
+			try {
+				Class<?> streamClass = Class.forName("jdk.jfr.consumer.RecordingStream");
+				Object stream = streamClass.getConstructor().newInstance();
+				Object settings = streamClass.getMethod("enable", String.class).invoke(stream, PINNED_EVENT);
+				// by default the event only fires when pinned for more than 20ms, we want to count every occurrence
+				Class.forName("jdk.jfr.EventSettings").getMethod("withThreshold", Duration.class).invoke(settings, Duration.ZERO);
+				Consumer<Object> consumer = new Consumer<Object>() {
+					@Override
+					public void accept(Object event) {
+						pinned.incrementAndGet();
+					}
+				};
+				streamClass.getMethod("onEvent", String.class, Consumer.class).invoke(stream, PINNED_EVENT, consumer);
+				streamClass.getMethod("startAsync").invoke(stream);
+				monitoring = true;
+				logger.info("Monitoring virtual thread pinning");
+			}
+			catch (Exception e) {
+				logger.warn("Could not start virtual thread pinning monitor", e);
+			}
+		}
+	}
+
+	public static boolean isMonitoring() {
+		return monitoring;
+	}
+
+	public static long getPinnedCount() {
+		return pinned.get();
+	}
+}
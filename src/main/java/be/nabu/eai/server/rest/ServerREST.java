@@ -17,20 +17,32 @@
 
 package be.nabu.eai.server.rest;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.ws.rs.GET;
 import javax.ws.rs.HeaderParam;
@@ -50,9 +62,28 @@ import be.nabu.eai.repository.api.Repository;
 import be.nabu.eai.repository.api.ResourceEntry;
 import be.nabu.eai.repository.resources.RepositoryEntry;
 import be.nabu.eai.repository.util.SystemPrincipal;
+import be.nabu.eai.server.AsyncExecutions;
+import be.nabu.eai.server.AsyncExecutions.AsyncExecution;
+import be.nabu.eai.server.AsyncExecutions.State;
+import be.nabu.eai.server.BatchRequest;
+import be.nabu.eai.server.BatchRequest.BatchItem;
+import be.nabu.eai.server.BatchResponse.BatchResult;
+import be.nabu.eai.server.BatchResponseWriter;
+import be.nabu.eai.server.BindingCache;
+import be.nabu.eai.server.CBORCodec;
+import be.nabu.eai.server.ReloadReport;
+import be.nabu.eai.server.ResponseStreamer;
+import be.nabu.eai.server.RunningServiceRegistry.RunningService;
+import be.nabu.eai.server.RunningServices;
+import be.nabu.eai.server.RunningServices.RunningServiceSummary;
 import be.nabu.eai.server.Server;
+import be.nabu.eai.server.StartupReport;
+import be.nabu.libs.artifacts.api.Artifact;
 import be.nabu.libs.authentication.api.Token;
 import be.nabu.libs.authentication.impl.ImpersonateToken;
+import be.nabu.libs.http.HTTPException;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.libs.http.core.DefaultHTTPResponse;
 import be.nabu.libs.http.core.ServerHeader;
 import be.nabu.libs.resources.api.ResourceContainer;
 import be.nabu.libs.resources.api.features.CacheableResource;
@@ -62,12 +93,10 @@ import be.nabu.libs.services.api.ExecutionContext;
 import be.nabu.libs.services.api.FeaturedExecutionContext;
 import be.nabu.libs.services.api.ServiceException;
 import be.nabu.libs.services.api.ServiceResult;
+import be.nabu.libs.types.TypeUtils;
 import be.nabu.libs.types.api.ComplexContent;
-import be.nabu.libs.types.binding.api.MarshallableBinding;
-import be.nabu.libs.types.binding.api.UnmarshallableBinding;
-import be.nabu.libs.types.binding.api.Window;
-import be.nabu.libs.types.binding.json.JSONBinding;
-import be.nabu.libs.types.binding.xml.XMLBinding;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.java.BeanResolver;
 import be.nabu.utils.io.IOUtils;
 import be.nabu.utils.mime.api.Header;
 import be.nabu.utils.mime.api.Part;
@@ -78,6 +107,9 @@ import be.nabu.utils.mime.impl.PlainMimeEmptyPart;
 
 public class ServerREST {
 	
+	// the maximum time (ms) we keep a worker waiting when long polling for an asynchronous result
+	private static final long MAX_ASYNC_WAIT = 60000;
+	
 	private Logger logger = LoggerFactory.getLogger(getClass());
 	
 	@Context
@@ -106,6 +138,27 @@ public class ServerREST {
 		repository.reloadAll();
 	}
 
+	@Path("/drain")
+	@GET
+	public void drain(@QueryParam("timeout") Long timeout) {
+		server.drain(timeout == null ? server.getDrainTimeout() : timeout);
+	}
+
+	@Path("/ready")
+	@GET
+	public void ready() {
+		// load balancers and orchestrators only look at the status code
+		if (!server.isReady()) {
+			throw new HTTPException(503, server.isDraining() ? "The server is draining" : "The server is not ready");
+		}
+	}
+
+	@Path("/reload-changed")
+	@GET
+	public ReloadReport reloadChanged() throws IOException {
+		return server.reloadChanged();
+	}
+
 	@Path("/reload/{id}")
 	@GET
 	public void reload(@PathParam("id") String id, @QueryParam("recursive") Boolean recursive) {
@@ -176,14 +229,330 @@ public class ServerREST {
 		if (service == null) {
 			throw new IllegalArgumentException("Can not find the service with id: " + serviceId);
 		}
-		String contentType = MimeUtils.getContentType(headers);
-
-		UnmarshallableBinding binding = MediaType.APPLICATION_JSON.equals(contentType) 
-			? new JSONBinding(service.getServiceInterface().getInputDefinition())
-			: new XMLBinding(service.getServiceInterface().getInputDefinition(), Charset.forName("UTF-8"));
+		ComplexContent input = unmarshal(MimeUtils.getContentType(headers), service.getServiceInterface().getInputDefinition(), content);
+		
+		Token principal = getPrincipal(headers);
+		
+		final Header additionalFeatures = MimeUtils.getHeader("Feature", headers);
+		
+		final Header serviceContextHeader = MimeUtils.getHeader("Service-Context", headers);
+		try {
+			ServiceResult serviceResult = execute(serviceId, service, principal, serviceContextHeader == null ? null : serviceContextHeader.getValue(), additionalFeatures == null ? null : additionalFeatures.getValue(), input);
+			if (serviceResult.getException() != null) {
+				logger.error("Could not run service: " + serviceId, serviceResult.getException());
+				byte [] bytes = toStackTrace(serviceResult.getException()).getBytes();
+				return new PlainMimeContentPart(null, IOUtils.wrap(bytes, true),
+					new MimeHeader("Content-Length", Integer.valueOf(bytes.length).toString()),
+					new MimeHeader("Content-Type", "text/plain")
+				);
+			}
+			return respond(serviceId, getResponseType(headers), serviceResult.getOutput());
+		}
+		catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		catch (ExecutionException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Runs the service in the server pool and immediately returns the id of the execution, the result can be fetched with GET /invoke-async/{id}
+	 * If a Callback-URL header is given and it is allowed, the result is also posted there once it is done
+	 */
+	@Path("/invoke-async/{service}")
+	@POST
+	public HTTPResponse invokeAsync(@PathParam("service") final String serviceId, InputStream content, Header...headers) throws IOException, ParseException, ServiceException {
+		logger.debug("Invoking asynchronously: {}", serviceId);
+		final DefinedService service = (DefinedService) repository.resolve(serviceId);
+		if (service == null) {
+			throw new IllegalArgumentException("Can not find the service with id: " + serviceId);
+		}
+		final ComplexContent input = unmarshal(MimeUtils.getContentType(headers), service.getServiceInterface().getInputDefinition(), content);
+		final String responseType = getResponseType(headers);
+		final Token principal = getPrincipal(headers);
+		final Header additionalFeatures = MimeUtils.getHeader("Feature", headers);
+		final Header serviceContextHeader = MimeUtils.getHeader("Service-Context", headers);
+		final Header callbackHeader = MimeUtils.getHeader("Callback-URL", headers);
+		final String callback = callbackHeader == null || callbackHeader.getValue() == null || callbackHeader.getValue().trim().isEmpty() ? null : callbackHeader.getValue().trim();
+		// we only call back to explicitly allowed urls
+		if (callback != null && !server.getAsyncCallbacks().isAllowed(callback)) {
+			throw new HTTPException(400, "The callback url is not allowed: " + callback);
+		}
+		
+		if (server.getPool() == null) {
+			throw new HTTPException(503, "No server pool available for asynchronous execution");
+		}
+		final AsyncExecutions executions = server.getAsyncExecutions();
+		final AsyncExecution execution;
+		try {
+			execution = executions.submit(serviceId, getOwner(principal));
+		}
+		catch (ServiceException e) {
+			throw new HTTPException(503, e.getMessage());
+		}
+		try {
+			server.submit(new Runnable() {
+				@Override
+				public void run() {
+					byte [] bytes = null;
+					String contentType = null;
+					State state = State.FAILED;
+					try {
+						ServiceResult serviceResult = execute(serviceId, service, principal, serviceContextHeader == null ? null : serviceContextHeader.getValue(), additionalFeatures == null ? null : additionalFeatures.getValue(), input);
+						if (serviceResult.getException() != null) {
+							logger.error("Could not run service: " + serviceId, serviceResult.getException());
+							bytes = toStackTrace(serviceResult.getException()).getBytes();
+							contentType = "text/plain";
+						}
+						else {
+							if (serviceResult.getOutput() != null) {
+								ByteArrayOutputStream output = new ByteArrayOutputStream();
+								marshal(responseType, output, serviceResult.getOutput());
+								bytes = output.toByteArray();
+								contentType = responseType;
+							}
+							state = State.SUCCEEDED;
+						}
+					}
+					catch (Exception e) {
+						logger.error("Could not run service: " + serviceId, e);
+						bytes = toStackTrace(e).getBytes();
+						contentType = "text/plain";
+					}
+					executions.complete(execution, state, bytes, contentType);
+					if (callback != null) {
+						server.getAsyncCallbacks().send(callback, execution);
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			executions.remove(execution.getId());
+			throw new HTTPException(503, "The server pool is saturated");
+		}
+		byte [] bytes = execution.getId().getBytes("UTF-8");
+		return new DefaultHTTPResponse(202, "Accepted", new PlainMimeContentPart(null, IOUtils.wrap(bytes, true),
+			new MimeHeader("Content-Length", Integer.valueOf(bytes.length).toString()),
+			new MimeHeader("Content-Type", "text/plain"),
+			new MimeHeader("Location", "/invoke-async/" + execution.getId())
+		));
+	}
+	
+	/**
+	 * Returns the result of an asynchronous execution, while it is still running we send back a 202
+	 * You can pass in a wait time (ms) to long poll until the execution is done
+	 */
+	@Path("/invoke-async/{id}")
+	@GET
+	public HTTPResponse getAsyncResult(@PathParam("id") String id, @QueryParam("wait") Long wait, Header...headers) throws InterruptedException {
+		AsyncExecution execution = server.getAsyncExecutions().get(id);
+		// someone else's execution is treated as unknown so we don't leak its existence
+		if (execution == null || !isOwner(execution, getPrincipal(headers))) {
+			throw new HTTPException(404, "No asynchronous execution found with id: " + id);
+		}
+		execution = server.getAsyncExecutions().await(id, wait == null ? 0 : Math.min(wait, MAX_ASYNC_WAIT));
+		if (execution == null) {
+			throw new HTTPException(404, "No asynchronous execution found with id: " + id);
+		}
+		if (execution.getState() == State.RUNNING) {
+			return new DefaultHTTPResponse(202, "Accepted", new PlainMimeEmptyPart(null, 
+				new MimeHeader("Content-Length", "0"),
+				new MimeHeader("Execution-State", execution.getState().name())
+			));
+		}
+		if (execution.getContent() == null) {
+			return new DefaultHTTPResponse(200, "OK", new PlainMimeEmptyPart(null, 
+				new MimeHeader("Content-Length", "0"),
+				new MimeHeader("Execution-State", execution.getState().name())
+			));
+		}
+		return new DefaultHTTPResponse(200, "OK", new PlainMimeContentPart(null, IOUtils.wrap(execution.getContent(), true),
+			new MimeHeader("Content-Length", Integer.valueOf(execution.getContent().length).toString()),
+			new MimeHeader("Content-Type", execution.getContentType()),
+			new MimeHeader("Execution-State", execution.getState().name())
+		));
+	}
+	
+	@Path("/invoke-batch")
+	@POST
+	public Part invokeBatch(InputStream content, Header...headers) throws IOException, ParseException {
+		final boolean json = MediaType.APPLICATION_JSON.equals(MimeUtils.getContentType(headers));
+		ComplexType requestType = (ComplexType) BeanResolver.getInstance().resolve(BatchRequest.class);
+		BatchRequest request = TypeUtils.getAsBean(unmarshal(json ? MediaType.APPLICATION_JSON : MediaType.APPLICATION_XML, requestType, content), BatchRequest.class);
+		final List<BatchItem> items = request.getItems() == null ? new ArrayList<BatchItem>() : request.getItems();
+		if (items.size() > server.getBatchMaxItems()) {
+			throw new HTTPException(413, "The batch contains " + items.size() + " items, the maximum is " + server.getBatchMaxItems());
+		}
+		logger.debug("Invoking batch of {} items", items.size());
 		
-		ComplexContent input = binding.unmarshal(content, new Window[0]);
+		// authentication and service resolving is done once for the entire batch
+		final Token principal = getPrincipal(headers);
+		final Map<String, DefinedService> services = new HashMap<String, DefinedService>();
+		for (BatchItem item : items) {
+			if (item.getService() != null && !services.containsKey(item.getService())) {
+				Artifact resolved = repository.resolve(item.getService());
+				services.put(item.getService(), resolved instanceof DefinedService ? (DefinedService) resolved : null);
+			}
+		}
 		
+		final int parallelism = Boolean.TRUE.equals(request.getParallel()) && server.getPool() != null
+			? Math.max(1, request.getParallelism() == null ? server.getBatchParallelism() : Math.min(request.getParallelism(), server.getBatchParallelism()))
+			: 1;
+		ResponseStreamer.Writer writer = new ResponseStreamer.Writer() {
+			@Override
+			public void write(OutputStream output) throws IOException {
+				writeBatch(output, items, services, principal, json, parallelism);
+			}
+		};
+		String responseType = json ? MediaType.APPLICATION_JSON : MediaType.APPLICATION_XML;
+		// the results are written as they become available
+		try {
+			InputStream stream = server.getResponseStreamer().stream("invoke-batch", writer);
+			return new PlainMimeContentPart(null, IOUtils.wrap(stream), 
+				new MimeHeader("Transfer-Encoding", "chunked"),
+				new MimeHeader("Content-Type", responseType)
+			);
+		}
+		catch (RejectedExecutionException e) {
+			logger.debug("No streaming capacity, buffering the batch response");
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			writer.write(bytes);
+			byte[] byteArray = bytes.toByteArray();
+			return new PlainMimeContentPart(null, IOUtils.wrap(byteArray, true), 
+				new MimeHeader("Content-Length", Integer.valueOf(byteArray.length).toString()),
+				new MimeHeader("Content-Type", responseType)
+			);
+		}
+	}
+	
+	/**
+	 * Runs the items and writes the results in order, at most "parallelism" items are running or waiting to be written at any time
+	 * An item that runs on the pool for longer than the batch item timeout is cancelled and reported as failed, the rest of the batch continues
+	 */
+	private void writeBatch(OutputStream output, final List<BatchItem> items, final Map<String, DefinedService> services, final Token principal, final boolean json, int parallelism) throws IOException {
+		BatchResponseWriter writer = new BatchResponseWriter(output, json);
+		List<Future<BatchResult>> futures = new ArrayList<Future<BatchResult>>();
+		List<Long> submitted = new ArrayList<Long>();
+		long itemTimeout = server.getBatchItemTimeout();
+		writer.start();
+		try {
+			for (int i = 0; i < items.size(); i++) {
+				while (futures.size() < items.size() && futures.size() < i + parallelism) {
+					final BatchItem item = items.get(futures.size());
+					Future<BatchResult> future;
+					if (parallelism > 1) {
+						try {
+							future = server.submit(new Callable<BatchResult>() {
+								@Override
+								public BatchResult call() {
+									return invokeItem(item, services.get(item.getService()), principal, json);
+								}
+							});
+						}
+						// if the pool is saturated, we run it ourselves
+						catch (RejectedExecutionException e) {
+							future = CompletableFuture.completedFuture(invokeItem(item, services.get(item.getService()), principal, json));
+						}
+					}
+					else {
+						future = CompletableFuture.completedFuture(invokeItem(item, services.get(item.getService()), principal, json));
+					}
+					futures.add(future);
+					submitted.add(System.currentTimeMillis());
+				}
+				writer.write(getItemResult(items.get(i), futures.get(i), itemTimeout <= 0 ? 0 : submitted.get(i) + itemTimeout));
+				// we no longer need it
+				futures.set(i, null);
+			}
+			writer.end();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while running the batch", e);
+		}
+		catch (ExecutionException e) {
+			throw new IOException("Could not run the batch", e.getCause());
+		}
+		finally {
+			// if the client went away, don't start the items that are still waiting
+			for (Future<BatchResult> future : futures) {
+				if (future != null) {
+					future.cancel(false);
+				}
+			}
+		}
+	}
+	
+	private BatchResult getItemResult(BatchItem item, Future<BatchResult> future, long deadline) throws InterruptedException, ExecutionException {
+		if (deadline == 0) {
+			return future.get();
+		}
+		try {
+			return future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		}
+		catch (TimeoutException e) {
+			future.cancel(true);
+			logger.error("Batch service did not complete within " + server.getBatchItemTimeout() + "ms: " + item.getService());
+			BatchResult result = new BatchResult();
+			result.setService(item.getService());
+			result.setCode("BATCH-TIMEOUT");
+			result.setError("The service did not complete within " + server.getBatchItemTimeout() + "ms");
+			result.setDuration(server.getBatchItemTimeout());
+			return result;
+		}
+	}
+	
+	/**
+	 * Runs a single item of a batch, a failure is reported in the result so it does not affect the other items
+	 */
+	private BatchResult invokeItem(BatchItem item, DefinedService service, Token principal, boolean json) {
+		BatchResult result = new BatchResult();
+		result.setService(item.getService());
+		long started = System.currentTimeMillis();
+		try {
+			if (service == null) {
+				throw new IllegalArgumentException("Can not find the service with id: " + item.getService());
+			}
+			ComplexType inputDefinition = service.getServiceInterface().getInputDefinition();
+			ComplexContent input;
+			if (item.getInput() == null || item.getInput().trim().isEmpty()) {
+				input = inputDefinition.newInstance();
+			}
+			else {
+				input = unmarshal(json ? MediaType.APPLICATION_JSON : MediaType.APPLICATION_XML, inputDefinition, new ByteArrayInputStream(item.getInput().getBytes("UTF-8")));
+			}
+			ServiceResult serviceResult = execute(item.getService(), service, principal, item.getContext(), item.getFeatures(), input);
+			if (serviceResult.getException() != null) {
+				throw serviceResult.getException();
+			}
+			if (serviceResult.getOutput() != null) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				marshal(json ? MediaType.APPLICATION_JSON : MediaType.APPLICATION_XML, bytes, serviceResult.getOutput());
+				result.setOutput(new String(bytes.toByteArray(), "UTF-8"));
+			}
+		}
+		catch (Exception e) {
+			logger.error("Could not run batch service: " + item.getService(), e);
+			result.setError(toStackTrace(e));
+			if (e instanceof ServiceException) {
+				result.setCode(((ServiceException) e).getCode());
+			}
+		}
+		result.setDuration(System.currentTimeMillis() - started);
+		return result;
+	}
+	
+	private static String getOwner(Token principal) {
+		return principal == null ? null : principal.getRealm() + ":" + principal.getName();
+	}
+	
+	private static boolean isOwner(AsyncExecution execution, Token principal) {
+		String owner = getOwner(principal);
+		return execution.getOwner() == null ? owner == null : execution.getOwner().equals(owner);
+	}
+	
+	private Token getPrincipal(Header...headers) {
 		// need to return the output & the id of the thread it is running in
 		Token principal = securityContext == null ? null : (Token) securityContext.getUserPrincipal();
 		if (principal == null && server.isAnonymousIsRoot()) {
@@ -195,16 +564,16 @@ public class ServerREST {
 			final Header realmHeader = MimeUtils.getHeader("Run-As-Realm", headers);
 			principal = new ImpersonateToken(null, realmHeader == null ? null : realmHeader.getValue(), header.getValue());
 		}
-		
-		final Header additionalFeatures = MimeUtils.getHeader("Feature", headers);
-		
-		final Header serviceContextHeader = MimeUtils.getHeader("Service-Context", headers);
+		return principal;
+	}
+	
+	private ServiceResult execute(String serviceId, DefinedService service, Token principal, String serviceContext, String additionalFeatures, ComplexContent input) throws InterruptedException, ExecutionException {
 		try {
 			// ignore empty values, likely a bad input from the developer
 			ServiceRuntime.setGlobalContext(new HashMap<String, Object>());
-			if (serviceContextHeader != null && serviceContextHeader.getValue() != null && !serviceContextHeader.getValue().trim().isEmpty()) {
+			if (serviceContext != null && !serviceContext.trim().isEmpty()) {
 				// set it globally
-				ServiceRuntime.getGlobalContext().put("service.context", serviceContextHeader.getValue());
+				ServiceRuntime.getGlobalContext().put("service.context", serviceContext);
 			}
 			// if no explicit context is given, set the root service as context
 			else {
@@ -212,54 +581,93 @@ public class ServerREST {
 			}
 			ServiceRuntime.getGlobalContext().put("service.source", "invoke");
 			ExecutionContext newExecutionContext = repository.newExecutionContext(principal);
-			if (additionalFeatures != null && additionalFeatures.getValue() != null && !additionalFeatures.getValue().trim().isEmpty()) {
-				((FeaturedExecutionContext) newExecutionContext).getEnabledFeatures().addAll(Arrays.asList(additionalFeatures.getValue().split("[\\s]*,[\\s]*")));
+			if (additionalFeatures != null && !additionalFeatures.trim().isEmpty()) {
+				((FeaturedExecutionContext) newExecutionContext).getEnabledFeatures().addAll(Arrays.asList(additionalFeatures.split("[\\s]*,[\\s]*")));
 			}
 			Future<ServiceResult> future = repository.getServiceRunner().run(service, newExecutionContext, input);
+			return future.get();
+		}
+		finally {
+			ServiceRuntime.setGlobalContext(null);
+		}
+	}
+	
+	private String toStackTrace(Exception exception) {
+		StringWriter writer = new StringWriter();
+		PrintWriter printer = new PrintWriter(writer);
+		exception.printStackTrace(printer);
+		printer.flush();
+		return writer.toString();
+	}
+	
+	private Part respond(String serviceId, final String responseType, final ComplexContent output) throws IOException {
+		// this is possible in some cases (e.g. void java methods)
+		if (output == null) {
+			return new PlainMimeEmptyPart(null, 
+				new MimeHeader("Content-Length", "0")
+			);
+		}
+		// when streaming, we don't buffer the full output, it is written to a chunked response as it is marshalled
+		// a marshalling failure breaks the stream so the response is aborted rather than ending as if it were complete
+		if (server.isStreamInvokeOutput()) {
 			try {
-				ServiceResult serviceResult = future.get();
-				if (serviceResult.getException() != null) {
-					logger.error("Could not run service: " + serviceId, serviceResult.getException());
-					StringWriter writer = new StringWriter();
-					PrintWriter printer = new PrintWriter(writer);
-					serviceResult.getException().printStackTrace(printer);
-					printer.flush();
-					byte [] bytes = writer.toString().getBytes();
-					return new PlainMimeContentPart(null, IOUtils.wrap(bytes, true),
-						new MimeHeader("Content-Length", Integer.valueOf(bytes.length).toString()),
-						new MimeHeader("Content-Type", "text/plain")
-					);
-				}
-				ComplexContent output = serviceResult.getOutput();
-				// this is possible in some cases (e.g. void java methods)
-				if (output == null) {
-					return new PlainMimeEmptyPart(null, 
-						new MimeHeader("Content-Length", "0")
-					);
-				}
-				else {
-					MarshallableBinding marshallable = MediaType.APPLICATION_JSON.equals(contentType) 
-						? new JSONBinding(output.getType())
-						: new XMLBinding(output.getType(), Charset.forName("UTF-8"));
-					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-					marshallable.marshal(bytes, output);
-					byte[] byteArray = bytes.toByteArray();
-					logger.trace("Response: {}", new String(byteArray));
-					return new PlainMimeContentPart(null, IOUtils.wrap(byteArray, true), 
-						new MimeHeader("Content-Length", Integer.valueOf(byteArray.length).toString()),
-						new MimeHeader("Content-Type", marshallable instanceof JSONBinding ? MediaType.APPLICATION_JSON : MediaType.APPLICATION_XML)
-					);
-				}
-			}
-			catch (InterruptedException e) {
-				throw new RuntimeException(e);
+				InputStream stream = server.getResponseStreamer().stream(serviceId, new ResponseStreamer.Writer() {
+					@Override
+					public void write(OutputStream stream) throws IOException {
+						marshal(responseType, stream, output);
+					}
+				});
+				return new PlainMimeContentPart(null, IOUtils.wrap(stream), 
+					new MimeHeader("Transfer-Encoding", "chunked"),
+					new MimeHeader("Content-Type", responseType)
+				);
 			}
-			catch (ExecutionException e) {
-				throw new RuntimeException(e);
+			catch (RejectedExecutionException e) {
+				logger.debug("No streaming capacity, buffering the output of: " + serviceId);
 			}
 		}
-		finally {
-			ServiceRuntime.setGlobalContext(null);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		marshal(responseType, bytes, output);
+		byte[] byteArray = bytes.toByteArray();
+		if (logger.isTraceEnabled() && !CBORCodec.CONTENT_TYPE.equals(responseType)) {
+			logger.trace("Response: {}", new String(byteArray, "UTF-8"));
+		}
+		return new PlainMimeContentPart(null, IOUtils.wrap(byteArray, true), 
+			new MimeHeader("Content-Length", Integer.valueOf(byteArray.length).toString()),
+			new MimeHeader("Content-Type", responseType)
+		);
+	}
+	
+	/**
+	 * The response is in the format of the request unless the client explicitly accepts cbor, text formats remain the default
+	 */
+	private String getResponseType(Header...headers) {
+		Header accept = MimeUtils.getHeader("Accept", headers);
+		String contentType = MimeUtils.getContentType(headers);
+		if ((accept != null && accept.getValue() != null && accept.getValue().contains(CBORCodec.CONTENT_TYPE)) || CBORCodec.CONTENT_TYPE.equals(contentType)) {
+			return CBORCodec.CONTENT_TYPE;
+		}
+		return MediaType.APPLICATION_JSON.equals(contentType) ? MediaType.APPLICATION_JSON : MediaType.APPLICATION_XML;
+	}
+	
+	private ComplexContent unmarshal(String contentType, ComplexType type, InputStream content) throws IOException, ParseException {
+		if (CBORCodec.CONTENT_TYPE.equals(contentType)) {
+			return CBORCodec.unmarshal(content, type);
+		}
+		return MediaType.APPLICATION_JSON.equals(contentType) 
+			? BindingCache.unmarshalJSON(content, type)
+			: BindingCache.unmarshalXML(content, type, Charset.forName("UTF-8"));
+	}
+	
+	private void marshal(String responseType, OutputStream output, ComplexContent content) throws IOException {
+		if (CBORCodec.CONTENT_TYPE.equals(responseType)) {
+			CBORCodec.marshal(output, content);
+		}
+		else if (MediaType.APPLICATION_JSON.equals(responseType)) {
+			BindingCache.marshalJSON(output, content);
+		}
+		else {
+			BindingCache.marshalXML(output, content, Charset.forName("UTF-8"));
 		}
 	}
 	
@@ -340,6 +748,38 @@ public class ServerREST {
 		return "Graph Gopher: 7.0-SNAPSHOT";
 	}
 	
+	@GET
+	@Path("/runtime/running")
+	public RunningServices getRunning() {
+		long now = System.currentTimeMillis();
+		List<RunningServiceSummary> summaries = new ArrayList<RunningServiceSummary>();
+		for (RunningService running : server.getRunningServices().getRunning()) {
+			RunningServiceSummary summary = new RunningServiceSummary();
+			summary.setServiceId(running.getServiceId());
+			summary.setPrincipal(running.getPrincipal());
+			summary.setThread(running.getThread().getName());
+			summary.setStarted(new Date(running.getStarted()));
+			summary.setAge(now - running.getStarted());
+			summaries.add(summary);
+		}
+		// oldest first, those are the most likely to be stuck
+		Collections.sort(summaries, new Comparator<RunningServiceSummary>() {
+			@Override
+			public int compare(RunningServiceSummary o1, RunningServiceSummary o2) {
+				return Long.compare(o2.getAge(), o1.getAge());
+			}
+		});
+		RunningServices result = new RunningServices();
+		result.setServices(summaries);
+		return result;
+	}
+	
+	@GET
+	@Path("/runtime/startup")
+	public StartupReport getStartup() {
+		return server.getProfiler().getReport();
+	}
+	
 	@GET
 	@Path("/heartbeat")
 	public Date getHeartbeat() {